@@ -4,6 +4,7 @@ package astify;
 import astify.core.Positioned;
 import astify.core.Position;
 import astify.token.Token;
+import astify.token.TokenBuffer;
 import astify.token.TokenType;
 
 import java.util.*;
@@ -19,7 +20,15 @@ public abstract class Capture implements Positioned {
     // return a callback to return the nth capture of a list of captures
     // for example `sequence(Capture.nth(0), ref('something'), symbol(';'))` to get the `something` and ignore the ';'
     public static CaptureGenerator nth(int index) {
-        return captures -> captures.get(index);
+        return new ParserGenerator.SourceGenerator() {
+            @Override public Capture generate(List<Capture> captures) {
+                return captures.get(index);
+            }
+
+            @Override public String write(String captures) {
+                return captures + ".get(" + index + ")";
+            }
+        };
     }
 
     @Override public Position getPosition() {
@@ -37,28 +46,41 @@ public abstract class Capture implements Positioned {
         }
     }
 
+    // a captured token, which for a token of a TokenBuffer is only its index in the buffer
     public static final class TokenCapture extends Capture {
         private final Token token;
+        private final TokenBuffer buffer;
+        private final int index;
 
         public TokenCapture(Token token) {
             super(token.getPosition());
             this.token = token;
+            this.buffer = null;
+            this.index = -1;
+        }
+
+        public TokenCapture(TokenBuffer buffer, int index) {
+            super(buffer.getPosition(index));
+            this.token = null;
+            this.buffer = buffer;
+            this.index = index;
         }
 
+        // returns the token captured, which for a token of a buffer is created each time this is called
         public Token getToken() {
-            return token;
+            return token != null ? token : buffer.getToken(index);
         }
 
         public TokenType getType() {
-            return token.getType();
+            return token != null ? token.getType() : buffer.getType(index);
         }
 
         public String getValue() {
-            return token.getValue();
+            return token != null ? token.getValue() : buffer.getValue(index);
         }
 
         @Override public String toString() {
-            return "<token-capture " + token.toString() + ">";
+            return "<token-capture " + getToken().toString() + ">";
         }
     }
 
@@ -72,6 +94,28 @@ public abstract class Capture implements Positioned {
         }
     }
 
+    // stands in for what a recovery matched, from the first token within it up to and including the sync token, so it
+    // spans what the recovery matched before the token every state failed on as well as the tokens skipped
+    // see PatternBuilder.recover()
+    public static final class ErrorCapture extends Capture {
+        private final List<ParserException> exceptions;
+
+        public ErrorCapture(Position spanningPosition, List<ParserException> exceptions) {
+            super(spanningPosition);
+            assert exceptions != null;
+            this.exceptions = exceptions;
+        }
+
+        // returns why every state failed
+        public List<ParserException> getExceptions() {
+            return Collections.unmodifiableList(exceptions);
+        }
+
+        @Override public String toString() {
+            return "<error-capture>";
+        }
+    }
+
     public static class ListCapture extends Capture {
         private final List<Capture> elements;
 
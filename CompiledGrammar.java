@@ -0,0 +1,134 @@
+package astify;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// an immutable matcher graph built once from a PatternBuilder
+// every pattern is compiled to exactly one matcher, and references to named patterns resolve to the shared matcher of
+// that pattern (which may lead to cycles), so parsing never has to build matchers on the fly
+public final class CompiledGrammar {
+    private final Map<String, Matcher.SequenceMatcher> rules;
+    private final Set<String> keywords;
+    private final Set<String> symbols;
+    // built the first time each rule is parsed with an LL1Parser
+    private final Map<String, LL1Table> ll1Tables = new ConcurrentHashMap<>();
+
+    public CompiledGrammar(PatternBuilder builder) {
+        assert builder != null;
+
+        Compiler compiler = new Compiler();
+        Map<String, Matcher.SequenceMatcher> rules = new HashMap<>();
+
+        for (Map.Entry<String, Pattern> entry : builder.getEnvironment().entrySet()) {
+            rules.put(entry.getKey(), compiler.compileRoot(entry.getValue()));
+        }
+
+        Compiler.computeFirstSets(rules.values());
+
+        this.rules = Collections.unmodifiableMap(rules);
+        this.keywords = Collections.unmodifiableSet(builder.getKeywords());
+        this.symbols = Collections.unmodifiableSet(builder.getSymbols());
+    }
+
+    public Set<String> getKeywords() {
+        return keywords;
+    }
+
+    // returns every symbol the grammar matches, to give to a DefaultTokenGenerator along with getKeywords()
+    public Set<String> getSymbols() {
+        return symbols;
+    }
+
+    public Set<String> getRuleNames() {
+        return rules.keySet();
+    }
+
+    public boolean hasRule(String name) {
+        return rules.containsKey(name);
+    }
+
+    // returns the root sequence used to parse the pattern with the given name, or null if there is no such pattern
+    Matcher.SequenceMatcher getRoot(String name) {
+        assert name != null;
+        return rules.get(name);
+    }
+
+    Matcher.SequenceMatcher getMain() {
+        return getRoot("main");
+    }
+
+    LL1Table getLL1Table(String name) {
+        assert hasRule(name) : "Lookup of '" + name + "' failed";
+        return ll1Tables.computeIfAbsent(name, (ignored) -> new LL1Table(getRoot(name), name));
+    }
+
+    static class Compiler {
+        private final Map<Pattern, Matcher> compiled = new IdentityHashMap<>();
+        private final Map<Pattern, Matcher.SequenceMatcher> roots = new IdentityHashMap<>();
+
+        Matcher compile(Pattern pattern) {
+            assert pattern != null;
+
+            Matcher matcher = compiled.get(pattern);
+
+            if (matcher == null) {
+                matcher = pattern.compile(this);
+                compiled.put(pattern, matcher);
+            }
+
+            return matcher;
+        }
+
+        // makes `matcher` the result of compiling `pattern` before its children are compiled, so that cyclic
+        // references back to the pattern resolve to the same matcher
+        Matcher register(Pattern pattern, Matcher matcher) {
+            assert !compiled.containsKey(pattern);
+            compiled.put(pattern, matcher);
+            return matcher;
+        }
+
+        // returns the sequence the parser starts from when parsing the given pattern
+        Matcher.SequenceMatcher compileRoot(Pattern pattern) {
+            Matcher.SequenceMatcher root = roots.get(pattern);
+
+            if (root == null) {
+                Matcher matcher = compile(pattern);
+
+                root = matcher instanceof Matcher.SequenceMatcher
+                        ? (Matcher.SequenceMatcher) matcher
+                        : new Matcher.SequenceMatcher(null, Collections.singletonList(matcher), Capture.nth(0));
+
+                roots.put(pattern, root);
+            }
+
+            return root;
+        }
+
+        // computes the first set of every matcher reachable from the given matchers, and compiles their predicates
+        // cycles are resolved by iterating until no first set changes
+        static void computeFirstSets(Collection<? extends Matcher> roots) {
+            Set<Matcher> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<Matcher> pending = new ArrayDeque<>(roots);
+            List<Matcher> matchers = new ArrayList<>();
+            boolean changed = true;
+
+            while (!pending.isEmpty()) {
+                Matcher matcher = pending.pop();
+
+                if (visited.add(matcher)) {
+                    matchers.add(matcher);
+                    pending.addAll(matcher.getChildren());
+                    matcher.compilePredicates();
+                }
+            }
+
+            while (changed) {
+                changed = false;
+
+                for (Matcher matcher : matchers) {
+                    changed |= matcher.updateFirstSet();
+                }
+            }
+        }
+    }
+}
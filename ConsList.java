@@ -0,0 +1,83 @@
+package astify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// an immutable, singly linked list which is appended to by creating a new head
+// parser states share common prefixes of their captures this way rather than copying them
+// the empty list is represented by null
+// a list may also be packed, standing for any one of several alternative lists of the same size, which is only used
+// when building a ParseForest
+final class ConsList<T> {
+    private final ConsList<T> previous;
+    private final T value;
+    private final int size;
+    private final List<ConsList<T>> alternatives;
+
+    private ConsList(ConsList<T> previous, T value) {
+        this.previous = previous;
+        this.value = value;
+        this.size = size(previous) + 1;
+        this.alternatives = null;
+    }
+
+    private ConsList(List<ConsList<T>> alternatives) {
+        this.previous = null;
+        this.value = null;
+        this.size = size(alternatives.get(0));
+        this.alternatives = alternatives;
+    }
+
+    ConsList<T> getPrevious() {
+        return previous;
+    }
+
+    T getValue() {
+        return value;
+    }
+
+    boolean isPacked() {
+        return alternatives != null;
+    }
+
+    List<ConsList<T>> getAlternatives() {
+        return alternatives;
+    }
+
+    // returns a list standing for any one of the given lists, which must all have the same size
+    static <T> ConsList<T> pack(List<ConsList<T>> alternatives) {
+        assert alternatives.size() > 1;
+        return new ConsList<>(alternatives);
+    }
+
+    static <T> ConsList<T> append(ConsList<T> list, T value) {
+        return new ConsList<>(list, value);
+    }
+
+    static <T> ConsList<T> appendAll(ConsList<T> list, List<T> values) {
+        for (T value : values) {
+            list = append(list, value);
+        }
+
+        return list;
+    }
+
+    static int size(ConsList<?> list) {
+        return list == null ? 0 : list.size;
+    }
+
+    // returns the elements of the list in the order they were appended
+    static <T> List<T> toList(ConsList<T> list) {
+        List<T> result = new ArrayList<>(size(list));
+
+        for (; list != null; list = list.previous) {
+            assert !list.isPacked() : "Cannot convert a packed list";
+            result.add(list.value);
+        }
+
+        Collections.reverse(result);
+
+        return result;
+    }
+}
@@ -0,0 +1,127 @@
+package astify;
+
+import astify.token.Token;
+import astify.token.TokenKinds;
+import astify.token.TokenType;
+
+import java.util.*;
+
+// the set of tokens a matcher can begin with, and whether it can match without consuming any token at all
+final class FirstSet {
+    private final Set<TokenType> types = EnumSet.noneOf(TokenType.class);
+    private final Map<TokenType, Set<String>> values = new EnumMap<>(TokenType.class);
+    // the kinds of the values, so that a token with a kind is found without comparing its value
+    private final BitSet kinds = new BitSet();
+    private boolean nullable = false;
+
+    boolean isNullable() {
+        return nullable;
+    }
+
+    // returns true if a matcher with this first set may accept the given token as its first token
+    // a nullable matcher may be skipped entirely, so it must also be considered as accepting any token
+    boolean accepts(Token token) {
+        return nullable || contains(token);
+    }
+
+    boolean contains(Token token) {
+        if (types.contains(token.getType())) return true;
+        if (token.getKind() != TokenKinds.NONE) return kinds.get(token.getKind());
+        Set<String> typeValues = values.get(token.getType());
+        return typeValues != null && typeValues.contains(token.getValue());
+    }
+
+    boolean isEmpty() {
+        return types.isEmpty() && values.isEmpty();
+    }
+
+    boolean add(TokenType type, String value) {
+        if (value == null) {
+            return types.add(type);
+        }
+
+        if (types.contains(type) || !values.computeIfAbsent(type, (ignored) -> new HashSet<>()).add(value)) return false;
+
+        kinds.set(TokenKinds.intern(type, value));
+        return true;
+    }
+
+    // adds the tokens of `other` to this set, ignoring whether it is nullable
+    boolean addAll(FirstSet other) {
+        boolean changed = false;
+
+        for (TokenType type : other.types) {
+            changed |= add(type, null);
+        }
+
+        for (Map.Entry<TokenType, Set<String>> entry : other.values.entrySet()) {
+            for (String value : entry.getValue()) {
+                changed |= add(entry.getKey(), value);
+            }
+        }
+
+        return changed;
+    }
+
+    // returns the tokens in both this set and `other`, ignoring whether either is nullable
+    FirstSet intersect(FirstSet other) {
+        FirstSet result = new FirstSet();
+
+        for (TokenType type : types) {
+            if (other.types.contains(type)) {
+                result.add(type, null);
+            }
+            else if (other.values.containsKey(type)) {
+                for (String value : other.values.get(type)) {
+                    result.add(type, value);
+                }
+            }
+        }
+
+        for (Map.Entry<TokenType, Set<String>> entry : values.entrySet()) {
+            Set<String> otherValues = other.values.get(entry.getKey());
+
+            for (String value : entry.getValue()) {
+                if (other.types.contains(entry.getKey()) || otherValues != null && otherValues.contains(value)) {
+                    result.add(entry.getKey(), value);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    // the token types this set contains with any value
+    Set<TokenType> getTypes() {
+        return Collections.unmodifiableSet(types);
+    }
+
+    // the values this set contains for each token type, excluding types contained with any value
+    Map<TokenType, Set<String>> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    boolean setNullable() {
+        if (nullable) return false;
+        nullable = true;
+        return true;
+    }
+
+    @Override public String toString() {
+        List<String> entries = new ArrayList<>();
+
+        for (TokenType type : types) {
+            entries.add(type.toString());
+        }
+
+        for (Map.Entry<TokenType, Set<String>> entry : values.entrySet()) {
+            for (String value : entry.getValue()) {
+                entries.add(entry.getKey().toString() + " \"" + value + "\"");
+            }
+        }
+
+        if (nullable) entries.add("<nothing>");
+
+        return "{" + String.join(", ", entries) + "}";
+    }
+}
@@ -0,0 +1,227 @@
+package astify;
+
+import astify.core.Position;
+import astify.core.Source;
+import astify.token.DefaultTokenGenerator;
+import astify.token.Token;
+import astify.token.TokenException;
+import astify.token.TokenType;
+
+import java.util.*;
+
+// parses an editable source, and parses it again after each edit reusing what the edit didn't change
+// - tokens before the edit are kept, and tokens are only generated again from the token the edit touches until they
+//   line up with the old tokens after the edit, which are kept rather than generated again
+// - the parser is restored from a checkpoint taken before the first token which changed, rather than parsing every
+//   token before it again
+// - once the parser reaches one of the old checkpoints after the edit in the same state as before (see
+//   Parser.Snapshot.isEquivalent()), the old parse of the rest of the tokens is kept rather than parsing them again
+// positions in an editable source move past each edit when they're next looked at, so the old tokens and everything
+// captured from them are at their new positions without being made again
+// checkpoints are of a number of tokens, so the old parse can only be kept after an edit which left as many tokens
+// before those after it as there were, and only once no sequence still being parsed holds a capture which differs
+// from before (captures made by CaptureGenerators are compared with equals())
+public class IncrementalParser {
+    // the number of tokens between checkpoints of the parser
+    private static final int CHECKPOINT_INTERVAL = 64;
+
+    private final CompiledGrammar grammar;
+    private final Source.EditableSource source;
+    private final Parser parser = new Parser();
+    private final String patternName;
+
+    // every token of the source not including EOF, and the offset into the source's content after each
+    private final List<Token> tokens = new ArrayList<>();
+    private int[] ends = new int[64];
+    // the parser's state before every CHECKPOINT_INTERVAL'th token
+    private final List<Parser.Snapshot> checkpoints = new ArrayList<>();
+    // the parser's state after the last token it was fed, before it was finished
+    private Parser.Snapshot last;
+
+    private List<Capture> results;
+    private List<ParserException> exceptions;
+    private TokenException tokenException;
+
+    public IncrementalParser(CompiledGrammar grammar, String patternName, Source.EditableSource source) {
+        assert grammar != null;
+        assert patternName != null;
+        assert source != null;
+        assert grammar.hasRule(patternName) : "Lookup of '" + patternName + "' failed";
+
+        this.grammar = grammar;
+        this.source = source;
+        this.patternName = patternName;
+
+        // the first checkpoint is made by every parse from the first token
+        checkpoints.add(null);
+        update(0, Collections.emptyList(), new int[0], 0, 0);
+    }
+
+    public IncrementalParser(CompiledGrammar grammar, Source.EditableSource source) {
+        this(grammar, "main", source);
+    }
+
+    public Source.EditableSource getSource() {
+        return source;
+    }
+
+    public List<Token> getTokens() {
+        return Collections.unmodifiableList(tokens);
+    }
+
+    // returns the results of parsing the source as it is now, which is empty if it failed to tokenize
+    public List<Capture> getResults() {
+        return results;
+    }
+
+    public boolean hasError() {
+        return tokenException != null || parser.hasError();
+    }
+
+    // returns every exception found parsing the source, including those recovered from
+    public List<ParserException> getExceptions() {
+        return exceptions;
+    }
+
+    // returns the error found tokenizing the source, or null if it was tokenized
+    public TokenException getTokenException() {
+        return tokenException;
+    }
+
+    // replaces the characters of the source from `start` up to `end` with `replacement`, then parses it again
+    public void edit(int start, int end, String replacement) {
+        assert 0 <= start && start <= end && end <= source.getContent().length();
+        assert replacement != null;
+
+        int first = findFirstToken(start);
+        List<Token> oldTokens = new ArrayList<>(tokens.subList(first, tokens.size()));
+        int[] oldEnds = Arrays.copyOfRange(ends, first, tokens.size());
+
+        tokens.subList(first, tokens.size()).clear();
+        source.replace(start, end, replacement);
+
+        // tokens after a token error were never generated, so there's nothing to line up with after it
+        if (tokenException != null) {
+            tokenException = null;
+            oldTokens = Collections.emptyList();
+        }
+
+        update(first, oldTokens, oldEnds, end, replacement.length() - (end - start));
+    }
+
+    // returns the index of the first token which ends at or after the offset, which an edit there may have changed
+    // a token ending exactly at the offset is included, as what is inserted there may join it
+    private int findFirstToken(int offset) {
+        int low = 0, high = tokens.size();
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (ends[mid] < offset) low = mid + 1;
+            else high = mid;
+        }
+
+        return low;
+    }
+
+    // generates tokens from after the token before `first` until they line up with the old tokens, which followed it
+    // before an edit ending at `editEnd` which changed the length of the content by `delta`, then parses every token
+    // from the last checkpoint before `first`
+    private void update(int first, List<Token> oldTokens, int[] oldEnds, int editEnd, int delta) {
+        int offset = first == 0 ? 0 : ends[first - 1];
+        Position position = first == 0 ? Position.fromOffset(source, 0) : tokens.get(first - 1).getPosition().after(1);
+        DefaultTokenGenerator generator = new DefaultTokenGenerator(source, grammar.getKeywords(), grammar.getSymbols(), offset, position);
+        int old = 0;
+        // the index of the first token from which the tokens are the same as before at the same indices, if any
+        int unchanged = -1;
+        Token token;
+
+        try {
+            while ((token = generator.getNext()).getType() != TokenType.EOF) {
+                int tokenEnd = generator.getOffset();
+
+                addToken(token, tokenEnd);
+
+                while (old < oldTokens.size() && oldEnds[old] + delta < tokenEnd) {
+                    ++old;
+                }
+
+                // the token is the same text at the same place as an old token after the edit, so every token after
+                // it is too
+                if (old < oldTokens.size() && oldEnds[old] + delta == tokenEnd && oldEnds[old] - oldTokens.get(old).getValue().length() >= editEnd && oldTokens.get(old).equals(token)) {
+                    if (tokens.size() - 1 == first + old) unchanged = tokens.size() - 1;
+                    moveTokens(oldTokens, oldEnds, old, delta);
+                    break;
+                }
+            }
+        }
+        catch (TokenException e) {
+            tokenException = e;
+        }
+
+        parse(first, unchanged);
+    }
+
+    // adds the old tokens after the one at `index`, whose positions the edit already moved by `delta` characters
+    private void moveTokens(List<Token> oldTokens, int[] oldEnds, int index, int delta) {
+        for (int i = index + 1; i < oldTokens.size(); ++i) {
+            addToken(oldTokens.get(i), oldEnds[i] + delta);
+        }
+    }
+
+    private void addToken(Token token, int end) {
+        if (tokens.size() == ends.length) ends = Arrays.copyOf(ends, ends.length * 2);
+        ends[tokens.size()] = end;
+        tokens.add(token);
+    }
+
+    // restores the parser from the last checkpoint before the token at `first`, and parses every token after it
+    // if the tokens from `unchanged` onwards are the same as before, the old parse is kept from the first old
+    // checkpoint at or after it which the parser reaches in the same state
+    private void parse(int first, int unchanged) {
+        int checkpoint = Math.min(first / CHECKPOINT_INTERVAL, checkpoints.size() - 1);
+        List<Parser.Snapshot> oldCheckpoints = new ArrayList<>(checkpoints.subList(checkpoint + 1, checkpoints.size()));
+        boolean reused = false;
+
+        checkpoints.subList(checkpoint + 1, checkpoints.size()).clear();
+
+        // the parser starts at the position of the first character, which moves when characters are inserted before
+        // it, so the start is made again rather than restored
+        if (checkpoint == 0) {
+            parser.setup(grammar, patternName, Position.fromOffset(source, 0));
+            checkpoints.set(0, parser.snapshot());
+        }
+        else {
+            parser.restore(checkpoints.get(checkpoint));
+        }
+
+        for (int i = checkpoints.get(checkpoint).getTokenIndex(); i < tokens.size(); ++i) {
+            if (i == checkpoints.size() * CHECKPOINT_INTERVAL) {
+                Parser.Snapshot snapshot = parser.snapshot();
+                int old = checkpoints.size() - checkpoint - 1;
+
+                if (unchanged >= 0 && i >= unchanged && old < oldCheckpoints.size() && snapshot.isEquivalent(oldCheckpoints.get(old))) {
+                    checkpoints.addAll(oldCheckpoints.subList(old, oldCheckpoints.size()));
+                    parser.restore(last);
+                    reused = true;
+                    break;
+                }
+
+                checkpoints.add(snapshot);
+            }
+
+            parser.feedToken(tokens.get(i));
+
+            if (parser.hasError()) break;
+        }
+
+        if (!reused) last = parser.snapshot();
+
+        if (!parser.hasError() && tokenException == null) {
+            parser.finish();
+        }
+
+        results = tokenException == null ? parser.getResults() : Collections.emptyList();
+        exceptions = parser.getAllExceptions();
+    }
+}
@@ -0,0 +1,196 @@
+package astify;
+
+import astify.core.Position;
+import astify.token.Token;
+import astify.token.TokenException;
+import astify.token.TokenGenerator;
+import astify.token.TokenType;
+
+import java.util.*;
+
+// a deterministic parser for rules which are LL(1), which predicts the branch to take from the next token using a
+// table rather than following every branch as the Parser does
+// it produces the same captures as the Parser, using the same CaptureGenerators
+// rules which aren't LL(1) are parsed by the Parser instead, and getConflicts() says why
+// input which fails to parse is parsed again by the Parser, so that errors are reported exactly as the Parser reports
+// them
+public class LL1Parser {
+    // a sequence being matched, along with the captures made so far
+    private static final class Frame {
+        private final Matcher.SequenceMatcher matcher;
+        private final List<Capture> captures;
+
+        private Frame(Matcher.SequenceMatcher matcher) {
+            this.matcher = matcher;
+            this.captures = new ArrayList<>(matcher.getMatcherCount());
+        }
+    }
+
+    private final CompiledGrammar grammar;
+    private final String patternName;
+    private final LL1Table table;
+
+    public LL1Parser(CompiledGrammar grammar, String patternName) {
+        assert grammar != null;
+        assert patternName != null;
+        assert grammar.hasRule(patternName) : "Lookup of '" + patternName + "' failed";
+
+        this.grammar = grammar;
+        this.patternName = patternName;
+        this.table = grammar.getLL1Table(patternName);
+    }
+
+    public LL1Parser(CompiledGrammar grammar) {
+        this(grammar, "main");
+    }
+
+    public boolean isLL1() {
+        return table.isLL1();
+    }
+
+    // returns the reasons the rule is not LL(1), each naming the rule it was found in
+    public List<String> getConflicts() {
+        return table.getConflicts();
+    }
+
+    // parses every token from the generator, returning the results as Parser.getResults() would
+    public List<Capture> parse(TokenGenerator generator) throws TokenException, ParserException {
+        Position begin = generator.getStartingPosition();
+
+        if (!table.isLL1()) {
+            return parseGeneral(Collections.emptyList(), generator, false, begin);
+        }
+
+        List<Token> tokens = new ArrayList<>();
+        Deque<Frame> frames = new ArrayDeque<>();
+        List<MatchPredicate> predicates = new ArrayList<>();
+        Position lastPosition = begin;
+        Token token = generator.getNext();
+        boolean finished = false;
+
+        // positioned as the Parser positions its EOF token
+        if (token.getType() == TokenType.EOF) token = new Token(TokenType.EOF, "", lastPosition.after(1));
+
+        // the root's own predicates are ignored, as the Parser ignores them
+        frames.push(new Frame(table.getRoot()));
+
+        while (true) {
+            Frame frame = frames.peek();
+            Matcher matcher;
+
+            if (frame.captures.size() == frame.matcher.getMatcherCount()) {
+                Capture result = frame.matcher.generate(frame.captures);
+
+                frames.pop();
+
+                if (frames.isEmpty()) {
+                    // the root ends with eof(), so every token has been consumed
+                    return Collections.singletonList(result);
+                }
+
+                frames.peek().captures.add(result);
+                continue;
+            }
+
+            // nothing is expanded after EOF
+            if (finished) break;
+
+            matcher = frame.matcher.getMatcher(frame.captures.size());
+            predicates.addAll(matcher.getPredicates());
+
+            while (matcher instanceof Matcher.BranchMatcher) {
+                int branch = table.predict((Matcher.BranchMatcher) matcher, token);
+
+                if (branch < 0) break;
+
+                matcher = ((Matcher.BranchMatcher) matcher).getBranch(branch);
+                predicates.addAll(matcher.getPredicates());
+            }
+
+            if (matcher instanceof Matcher.BranchMatcher) {
+                break;
+            }
+            else if (matcher instanceof Matcher.TokenMatcher) {
+                if (!((Matcher.TokenMatcher) matcher).matches(token) || !testPredicates(predicates, token, lastPosition, frames)) {
+                    break;
+                }
+
+                predicates.clear();
+                frame.captures.add(new Capture.TokenCapture(token));
+                lastPosition = token.getPosition();
+
+                if (token.getType() == TokenType.EOF) {
+                    finished = true;
+                }
+                else {
+                    tokens.add(token);
+                    token = generator.getNext();
+                    if (token.getType() == TokenType.EOF) token = new Token(TokenType.EOF, "", lastPosition.after(1));
+                }
+            }
+            else if (matcher instanceof Matcher.NothingMatcher) {
+                frame.captures.add(new Capture.EmptyCapture(lastPosition.after(0)));
+            }
+            else {
+                assert matcher instanceof Matcher.SequenceMatcher;
+                frames.push(new Frame((Matcher.SequenceMatcher) matcher));
+            }
+        }
+
+        // the input doesn't match, so the Parser parses it again to find out why
+        if (token.getType() != TokenType.EOF) tokens.add(token);
+
+        return parseGeneral(tokens, generator, token.getType() == TokenType.EOF, begin);
+    }
+
+    private boolean testPredicates(List<MatchPredicate> predicates, Token token, Position lastPosition, Deque<Frame> frames) {
+        if (predicates.isEmpty()) return true;
+
+        MatchPredicate.State state = new MatchPredicate.State(token, lastPosition, getSources(frames));
+
+        for (MatchPredicate predicate : predicates) {
+            if (!predicate.test(state)) return false;
+        }
+
+        return true;
+    }
+
+    private static List<String> getSources(Deque<Frame> frames) {
+        List<String> sources = new ArrayList<>();
+
+        for (Frame frame : frames) {
+            if (frame.matcher.name != null && !frame.matcher.name.equals(""))
+                sources.add(frame.matcher.name);
+        }
+
+        return sources;
+    }
+
+    // parses the tokens read so far followed by the rest of the generator's tokens using the Parser
+    private List<Capture> parseGeneral(List<Token> tokens, TokenGenerator generator, boolean reachedEOF, Position begin) throws TokenException, ParserException {
+        Parser parser = new Parser();
+
+        parser.setup(grammar, patternName, begin);
+
+        for (Token token : tokens) {
+            parser.feedToken(token);
+
+            if (parser.hasError()) {
+                throw ParserException.combine(parser.getExceptions());
+            }
+        }
+
+        if (reachedEOF) {
+            parser.finish();
+        }
+        else {
+            parser.parse(generator);
+        }
+
+        if (parser.hasError()) {
+            throw ParserException.combine(parser.getExceptions());
+        }
+
+        return parser.getResults();
+    }
+}
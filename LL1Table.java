@@ -0,0 +1,239 @@
+package astify;
+
+import astify.token.Token;
+import astify.token.TokenType;
+
+import java.util.*;
+
+// the predict table of a compiled rule, if it can be parsed deterministically with a single token of lookahead
+// a rule is LL(1) if:
+// - the branches of every branch matcher reachable from it start with disjoint sets of tokens, where a branch which
+//   can match nothing is taken to start with any token which may follow the branch matcher
+// - nothing reachable from it is left recursive
+// - it ends with eof(), so it is only ever matched against the whole input, as the Parser would match it
+// otherwise the table lists the reasons it is not, naming the rule each one was found in
+final class LL1Table {
+    // the branch to take for each token which a branch matcher may start with
+    private static final class Prediction {
+        private final Map<TokenType, Integer> types = new EnumMap<>(TokenType.class);
+        private final Map<TokenType, Map<String, Integer>> values = new EnumMap<>(TokenType.class);
+
+        private void add(FirstSet set, int branch) {
+            for (TokenType type : set.getTypes()) {
+                types.put(type, branch);
+            }
+
+            for (Map.Entry<TokenType, Set<String>> entry : set.getValues().entrySet()) {
+                Map<String, Integer> typeValues = values.computeIfAbsent(entry.getKey(), (ignored) -> new HashMap<>());
+
+                for (String value : entry.getValue()) {
+                    typeValues.put(value, branch);
+                }
+            }
+        }
+
+        private int predict(Token token) {
+            Map<String, Integer> typeValues = values.get(token.getType());
+            Integer branch = typeValues == null ? null : typeValues.get(token.getValue());
+
+            if (branch == null) branch = types.get(token.getType());
+
+            return branch == null ? -1 : branch;
+        }
+    }
+
+    private final Matcher.SequenceMatcher root;
+    private final Map<Matcher, Prediction> predictions = new IdentityHashMap<>();
+    private final List<String> conflicts = new ArrayList<>();
+
+    // names of the rule each reachable matcher was first found in, in the order they were found
+    private final Map<Matcher, String> owners = new IdentityHashMap<>();
+    private final List<Matcher> matchers = new ArrayList<>();
+
+    LL1Table(Matcher.SequenceMatcher root, String name) {
+        assert root != null;
+        assert name != null;
+
+        this.root = root;
+
+        findMatchers(name);
+
+        if (!endsWithEOF()) {
+            conflicts.add("'" + name + "' does not end with eof()");
+        }
+
+        findLeftRecursion();
+        buildPredictions(computeFollowSets());
+    }
+
+    Matcher.SequenceMatcher getRoot() {
+        return root;
+    }
+
+    boolean isLL1() {
+        return conflicts.isEmpty();
+    }
+
+    List<String> getConflicts() {
+        return Collections.unmodifiableList(conflicts);
+    }
+
+    // returns the index of the branch to take for the given token, or -1 if no branch can start with it
+    int predict(Matcher.BranchMatcher matcher, Token token) {
+        return predictions.get(matcher).predict(token);
+    }
+
+    private void findMatchers(String name) {
+        Deque<Matcher> pending = new ArrayDeque<>();
+
+        owners.put(root, root.name != null ? root.name : name);
+        matchers.add(root);
+        pending.add(root);
+
+        while (!pending.isEmpty()) {
+            Matcher matcher = pending.poll();
+
+            for (Matcher child : matcher.getChildren()) {
+                if (!owners.containsKey(child)) {
+                    boolean named = child instanceof Matcher.SequenceMatcher && ((Matcher.SequenceMatcher) child).name != null;
+
+                    owners.put(child, named ? ((Matcher.SequenceMatcher) child).name : owners.get(matcher));
+                    matchers.add(child);
+                    pending.add(child);
+                }
+            }
+        }
+    }
+
+    private boolean endsWithEOF() {
+        int count = root.getMatcherCount();
+
+        if (count == 0 || !(root.getMatcher(count - 1) instanceof Matcher.TokenMatcher)) {
+            return false;
+        }
+
+        return ((Matcher.TokenMatcher) root.getMatcher(count - 1)).getType() == TokenType.EOF;
+    }
+
+    // returns the matchers which may be matched at the same token as the given matcher, before it consumes anything
+    private static List<Matcher> getLeftChildren(Matcher matcher) {
+        if (matcher instanceof Matcher.BranchMatcher) {
+            return matcher.getChildren();
+        }
+
+        List<Matcher> children = new ArrayList<>();
+
+        for (Matcher child : matcher.getChildren()) {
+            children.add(child);
+            if (!child.getFirstSet().isNullable()) break;
+        }
+
+        return children;
+    }
+
+    // finds cycles of matchers which may be entered again without consuming a token, which would never terminate
+    private void findLeftRecursion() {
+        Set<Matcher> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Matcher> entered = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<String> reported = new HashSet<>();
+
+        for (Matcher matcher : matchers) {
+            findLeftRecursion(matcher, visited, entered, reported);
+        }
+    }
+
+    private void findLeftRecursion(Matcher matcher, Set<Matcher> visited, Set<Matcher> entered, Set<String> reported) {
+        if (!visited.add(matcher)) {
+            if (entered.contains(matcher) && reported.add(owners.get(matcher))) {
+                conflicts.add("'" + owners.get(matcher) + "' is left recursive");
+            }
+
+            return;
+        }
+
+        entered.add(matcher);
+
+        for (Matcher child : getLeftChildren(matcher)) {
+            findLeftRecursion(child, visited, entered, reported);
+        }
+
+        entered.remove(matcher);
+    }
+
+    // computes the set of tokens which may follow each matcher, iterating until no set changes
+    private Map<Matcher, FirstSet> computeFollowSets() {
+        Map<Matcher, FirstSet> follow = new IdentityHashMap<>();
+        boolean changed = true;
+
+        for (Matcher matcher : matchers) {
+            follow.put(matcher, new FirstSet());
+        }
+
+        follow.get(root).add(TokenType.EOF, null);
+
+        while (changed) {
+            changed = false;
+
+            for (Matcher matcher : matchers) {
+                List<Matcher> children = matcher.getChildren();
+
+                if (matcher instanceof Matcher.BranchMatcher) {
+                    for (Matcher child : children) {
+                        changed |= follow.get(child).addAll(follow.get(matcher));
+                    }
+
+                    continue;
+                }
+
+                for (int i = 0; i < children.size(); ++i) {
+                    FirstSet childFollow = follow.get(children.get(i));
+                    boolean restNullable = true;
+
+                    for (int j = i + 1; j < children.size() && restNullable; ++j) {
+                        changed |= childFollow.addAll(children.get(j).getFirstSet());
+                        restNullable = children.get(j).getFirstSet().isNullable();
+                    }
+
+                    if (restNullable) {
+                        changed |= childFollow.addAll(follow.get(matcher));
+                    }
+                }
+            }
+        }
+
+        return follow;
+    }
+
+    private void buildPredictions(Map<Matcher, FirstSet> follow) {
+        for (Matcher matcher : matchers) {
+            if (!(matcher instanceof Matcher.BranchMatcher)) continue;
+
+            List<Matcher> branches = matcher.getChildren();
+            List<FirstSet> predictSets = new ArrayList<>();
+            Prediction prediction = new Prediction();
+
+            for (Matcher branch : branches) {
+                FirstSet predictSet = new FirstSet();
+
+                predictSet.addAll(branch.getFirstSet());
+                if (branch.getFirstSet().isNullable()) predictSet.addAll(follow.get(matcher));
+
+                predictSets.add(predictSet);
+            }
+
+            for (int i = 0; i < branches.size(); ++i) {
+                for (int j = i + 1; j < branches.size(); ++j) {
+                    FirstSet overlap = predictSets.get(i).intersect(predictSets.get(j));
+
+                    if (!overlap.isEmpty() || branches.get(i).getFirstSet().isNullable() && branches.get(j).getFirstSet().isNullable()) {
+                        conflicts.add("'" + owners.get(matcher) + "': branches " + (i + 1) + " and " + (j + 1) + " can both start with " + overlap.toString());
+                    }
+                }
+
+                prediction.add(predictSets.get(i), i);
+            }
+
+            predictions.put(matcher, prediction);
+        }
+    }
+}
@@ -5,6 +5,9 @@ import astify.core.Position;
 import astify.token.Token;
 import astify.token.TokenType;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public interface MatchPredicate {
@@ -27,7 +30,7 @@ public interface MatchPredicate {
     }
 
     static MatchPredicate noSpace() {
-        return new MatchPredicate() {
+        return new ParserGenerator.SourcePredicate() {
             @Override public boolean test(State state) {
                 return state.nextToken.getPosition().isAfter(state.lastTokenPosition);
             }
@@ -35,42 +38,206 @@ public interface MatchPredicate {
             @Override public ParserFailure getError(State state) {
                 return new ParserFailure.PredicateFailure(state.sources, "Unexpected space before " + state.nextToken.toString());
             }
+
+            @Override public String write(String next, String last) {
+                return "(" + next + ".getPosition().isAfter(" + last + ")) ? null : \"Unexpected space before \" + " + next;
+            }
         };
     }
 
     static MatchPredicate sameLine() {
-        return new MatchPredicate() {
+        return new ParserGenerator.SourcePredicate() {
             @Override public boolean test(State state) {
-                return state.nextToken.getPosition().line1 == state.lastTokenPosition.line2;
+                return state.nextToken.getPosition().getStartLine() == state.lastTokenPosition.getEndLine();
             }
 
             @Override public ParserFailure getError(State state) {
                 return new ParserFailure.PredicateFailure(state.sources, "Unexpected newline before " + state.nextToken.toString());
             }
+
+            @Override public String write(String next, String last) {
+                return "(" + next + ".getPosition().getStartLine() == " + last + ".getEndLine()) ? null : \"Unexpected newline before \" + " + next;
+            }
         };
     }
 
     static MatchPredicate nextLine() {
-        return new MatchPredicate() {
+        return new ParserGenerator.SourcePredicate() {
             @Override public boolean test(State state) {
-                return state.nextToken.getType() == TokenType.EOF || state.nextToken.getPosition().line1 > state.lastTokenPosition.line2;
+                return state.nextToken.getType() == TokenType.EOF || state.nextToken.getPosition().getStartLine() > state.lastTokenPosition.getEndLine();
             }
 
             @Override public ParserFailure getError(State state) {
                 return new ParserFailure.PredicateFailure(state.sources, "Expected newline before " + state.nextToken.toString());
             }
+
+            @Override public String write(String next, String last) {
+                return "(" + next + ".getType() == TokenType.EOF || " + next + ".getPosition().getStartLine() > " + last + ".getEndLine()) ? null : \"Expected newline before \" + " + next;
+            }
         };
     }
 
+    // matches a token as the pattern would, where the pattern's own predicates are ignored
     static MatchPredicate matches(Pattern.TokenPattern pattern) {
+        Matcher.TokenMatcher matcher = (Matcher.TokenMatcher) new CompiledGrammar.Compiler().compile(pattern);
+
+        return new TokenPredicate() {
+            @Override boolean test(Token token) {
+                return matcher.matches(token);
+            }
+
+            @Override public ParserFailure getError(State state) {
+                return matcher.getError(state.nextToken, state.sources);
+            }
+        };
+    }
+
+    // passes if the next token matches the pattern, which must match exactly one token, such as a token pattern or a
+    // branch of token patterns
+    // only the next token is ever looked at, so this is not lookahead over patterns of several tokens, and predicates
+    // within the pattern which look at more than the token are ignored
+    static MatchPredicate nextCanStart(Pattern pattern) {
+        assert pattern != null;
+        return new TokenPredicate.Lookahead(pattern, true);
+    }
+
+    // passes if the next token doesn't match the pattern, which must match exactly one token as for nextCanStart()
+    static MatchPredicate nextCannotStart(Pattern pattern) {
+        assert pattern != null;
+        return new TokenPredicate.Lookahead(pattern, false);
+    }
+
+    // passes if every predicate passes, failing with the error of the first which fails
+    static MatchPredicate and(MatchPredicate... predicates) {
+        List<MatchPredicate> list = Arrays.asList(predicates.clone());
+
+        assert predicates.length > 0;
+
+        if (TokenPredicate.all(list)) {
+            return new TokenPredicate() {
+                @Override boolean test(Token token) {
+                    for (MatchPredicate predicate : list) {
+                        if (!((TokenPredicate) predicate).test(token)) return false;
+                    }
+
+                    return true;
+                }
+
+                @Override void compile() {
+                    for (MatchPredicate predicate : list) ((TokenPredicate) predicate).compile();
+                }
+
+                @Override public ParserFailure getError(State state) {
+                    return getFirstError(list, state);
+                }
+            };
+        }
+
+        return new MatchPredicate() {
+            @Override public boolean test(State state) {
+                for (MatchPredicate predicate : list) {
+                    if (!predicate.test(state)) return false;
+                }
+
+                return true;
+            }
+
+            @Override public ParserFailure getError(State state) {
+                return getFirstError(list, state);
+            }
+        };
+    }
+
+    // passes if any predicate passes, failing with the errors of all of them
+    static MatchPredicate or(MatchPredicate... predicates) {
+        List<MatchPredicate> list = Arrays.asList(predicates.clone());
+
+        assert predicates.length > 0;
+
+        if (TokenPredicate.all(list)) {
+            return new TokenPredicate() {
+                @Override boolean test(Token token) {
+                    for (MatchPredicate predicate : list) {
+                        if (((TokenPredicate) predicate).test(token)) return true;
+                    }
+
+                    return false;
+                }
+
+                @Override void compile() {
+                    for (MatchPredicate predicate : list) ((TokenPredicate) predicate).compile();
+                }
+
+                @Override public ParserFailure getError(State state) {
+                    return getAllErrors(list, state);
+                }
+            };
+        }
+
         return new MatchPredicate() {
             @Override public boolean test(State state) {
-                return ((Matcher.TokenMatcher) pattern.getMatcher()).matches(state.nextToken);
+                for (MatchPredicate predicate : list) {
+                    if (predicate.test(state)) return true;
+                }
+
+                return false;
             }
 
             @Override public ParserFailure getError(State state) {
-                return ((Matcher.TokenMatcher) pattern.getMatcher()).getError(state.nextToken, state.sources);
+                return getAllErrors(list, state);
             }
         };
     }
+
+    // passes if the predicate fails
+    static MatchPredicate not(MatchPredicate predicate) {
+        assert predicate != null;
+
+        if (predicate instanceof TokenPredicate) {
+            TokenPredicate tokenPredicate = (TokenPredicate) predicate;
+
+            return new TokenPredicate() {
+                @Override boolean test(Token token) {
+                    return !tokenPredicate.test(token);
+                }
+
+                @Override void compile() {
+                    tokenPredicate.compile();
+                }
+
+                @Override public ParserFailure getError(State state) {
+                    return new ParserFailure.PredicateFailure(state.sources, "Unexpected " + state.nextToken.toString());
+                }
+            };
+        }
+
+        return new MatchPredicate() {
+            @Override public boolean test(State state) {
+                return !predicate.test(state);
+            }
+
+            @Override public ParserFailure getError(State state) {
+                return new ParserFailure.PredicateFailure(state.sources, "Unexpected " + state.nextToken.toString());
+            }
+        };
+    }
+
+    private static ParserFailure getFirstError(List<MatchPredicate> predicates, State state) {
+        for (MatchPredicate predicate : predicates) {
+            if (!predicate.test(state)) return predicate.getError(state);
+        }
+
+        return predicates.get(0).getError(state);
+    }
+
+    private static ParserFailure getAllErrors(List<MatchPredicate> predicates, State state) {
+        List<String> errors = new ArrayList<>();
+
+        for (MatchPredicate predicate : predicates) {
+            String error = predicate.getError(state).getError();
+            if (!errors.contains(error)) errors.add(error);
+        }
+
+        return new ParserFailure.PredicateFailure(state.sources, String.join(" or ", errors));
+    }
 }
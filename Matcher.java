@@ -1,46 +1,106 @@
 package astify;
 
 import astify.token.Token;
+import astify.token.TokenKinds;
 import astify.token.TokenType;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 abstract class Matcher {
     private final List<MatchPredicate> predicates;
+    // the predicates which only look at the next token, which canStartWith() tests too
+    private final List<TokenPredicate> tokenPredicates;
+    private final FirstSet firstSet;
 
     Matcher() {
         predicates = new ArrayList<>();
+        tokenPredicates = new ArrayList<>(0);
+        firstSet = new FirstSet();
     }
 
     Matcher addPredicate(MatchPredicate predicate) {
         predicates.add(predicate);
+        if (predicate instanceof TokenPredicate) tokenPredicates.add((TokenPredicate) predicate);
         return this;
     }
 
+    // returns the predicates of this matcher, which must not be modified
     List<MatchPredicate> getPredicates() {
-        return new ArrayList<>(predicates);
+        return predicates;
     }
 
+    // the tokens this matcher can start with, see CompiledGrammar.Compiler.computeFirstSets()
+    FirstSet getFirstSet() {
+        return firstSet;
+    }
+
+    // returns true if this matcher could accept the given token, or match without consuming it
+    // predicates apply to the next token whether or not the matcher consumes it, so those which only look at the
+    // token are tested too
+    boolean canStartWith(Token token) {
+        if (!firstSet.accepts(token)) return false;
+
+        for (int i = 0; i < tokenPredicates.size(); ++i) {
+            if (!tokenPredicates.get(i).test(token)) return false;
+        }
+
+        return true;
+    }
+
+    // compiles the predicates which look ahead with patterns of their own
+    void compilePredicates() {
+        for (TokenPredicate predicate : tokenPredicates) {
+            predicate.compile();
+        }
+    }
+
+    List<Matcher> getChildren() {
+        return Collections.emptyList();
+    }
+
+    // recomputes the first set of this matcher from those of its children, returning true if it changed
+    abstract boolean updateFirstSet();
+
     static class TokenMatcher extends Matcher {
         private final TokenType type;
         private final String value;
+        // the kind interned for the type and value, or TokenKinds.NONE if any value of the type is matched
+        private final int kind;
 
         TokenMatcher(TokenType type, String value) {
             assert type != null;
             assert value != null;
             this.type = type;
             this.value = value;
+            this.kind = TokenKinds.intern(type, value);
         }
 
         TokenMatcher(TokenType type) {
             assert type != null;
             this.type = type;
             this.value = null;
+            this.kind = TokenKinds.NONE;
+        }
+
+        TokenType getType() {
+            return type;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        int getKind() {
+            return kind;
         }
 
         boolean matches(Token token) {
-            return value == null ? token.matches(type) : token.matches(type, value);
+            if (!token.matches(type)) return false;
+            if (value == null) return true;
+            // a token without a kind was created before its value was interned, so its value must be compared
+            return token.getKind() != TokenKinds.NONE ? token.getKind() == kind : token.matches(type, value);
         }
 
         ParserFailure getError(Token token, List<String> sources) {
@@ -50,6 +110,10 @@ abstract class Matcher {
             return new ParserFailure.TokenTypeMatchFailure(sources, type, value);
         }
 
+        @Override boolean updateFirstSet() {
+            return getFirstSet().add(type, value);
+        }
+
         @Override public String toString() {
             return "<token-matcher " + type.toString() + (value == null ? "" : ", " + value) + ">";
         }
@@ -60,6 +124,10 @@ abstract class Matcher {
             // empty
         }
 
+        @Override boolean updateFirstSet() {
+            return getFirstSet().setNullable();
+        }
+
         @Override public String toString() {
             return "<nothing-matcher>";
         }
@@ -89,16 +157,57 @@ abstract class Matcher {
             return generator.generate(captures);
         }
 
+        @Override List<Matcher> getChildren() {
+            return matchers;
+        }
+
+        @Override boolean updateFirstSet() {
+            boolean changed = false;
+
+            for (Matcher matcher : matchers) {
+                changed |= getFirstSet().addAll(matcher.getFirstSet());
+                if (!matcher.getFirstSet().isNullable()) return changed;
+            }
+
+            return getFirstSet().setNullable() || changed;
+        }
+
         @Override public String toString() {
             return name == null ? "<sequence-matcher>" : "<sequence-matcher '" + name + "'>";
         }
     }
 
+    // a sequence of one matcher which the Parser recovers to if every state fails within it, by skipping every token
+    // up to and including the next which matches `sync`, and completing it with an error capture
+    static final class RecoverMatcher extends SequenceMatcher {
+        final TokenMatcher sync;
+
+        RecoverMatcher(List<Matcher> matchers, TokenMatcher sync) {
+            super(null, matchers, Capture.nth(0));
+            this.sync = sync;
+        }
+
+        @Override public String toString() {
+            return "<recover-matcher " + sync.toString() + ">";
+        }
+    }
+
     static class BranchMatcher extends Matcher {
         private final List<Matcher> branches;
+        private final boolean ordered;
 
         BranchMatcher(List<Matcher> branches) {
+            this(branches, false);
+        }
+
+        BranchMatcher(List<Matcher> branches, boolean ordered) {
             this.branches = branches;
+            this.ordered = ordered;
+        }
+
+        // returns true if the first branch to match should be taken, see PatternBuilder.first_of()
+        boolean isOrdered() {
+            return ordered;
         }
 
         Matcher getBranch(int i) {
@@ -109,28 +218,23 @@ abstract class Matcher {
             return branches.size();
         }
 
-        @Override public String toString() {
-            return "<branch-matcher>";
-        }
-    }
-
-    static class GeneratorMatcher extends Matcher {
-        interface MatcherGenerator {
-            Matcher generate();
+        @Override List<Matcher> getChildren() {
+            return branches;
         }
 
-        private final MatcherGenerator generator;
+        @Override boolean updateFirstSet() {
+            boolean changed = false;
 
-        GeneratorMatcher(MatcherGenerator generator) {
-            this.generator = generator;
-        }
+            for (Matcher branch : branches) {
+                changed |= getFirstSet().addAll(branch.getFirstSet());
+                if (branch.getFirstSet().isNullable()) changed |= getFirstSet().setNullable();
+            }
 
-        Matcher generate() {
-            return generator.generate();
+            return changed;
         }
 
         @Override public String toString() {
-            return "<generator-matcher>";
+            return ordered ? "<ordered-branch-matcher>" : "<branch-matcher>";
         }
     }
 }
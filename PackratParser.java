@@ -0,0 +1,259 @@
+package astify;
+
+import astify.core.Position;
+import astify.token.Token;
+import astify.token.TokenException;
+import astify.token.TokenGenerator;
+import astify.token.TokenType;
+
+import java.util.*;
+
+// a recursive descent parser over a buffer of every token, which memoizes the result of each sequence and branch at
+// each token so that nothing is matched more than once per token (packrat parsing), giving linear time parsing
+// unlike the breadth-first Parser, this only ever produces one result:
+// - a first_of() branch takes the first of its branches to match, in the order they were given
+// - any other branch (one_of(), optional() and list()) takes its longest match, preferring earlier branches on a tie,
+//   so optionals and lists are greedy and never give back tokens to what follows them
+// - a branch is never tried again once what follows it fails, so this rejects some inputs the Parser accepts, such as
+//   "a b" for `sequence(one_of(a, sequence(a, b)), b)`, where the longest match of the one_of() leaves no `b`
+// - left recursion is not supported: a pattern which refers back to itself without consuming a token fails there
+// predicates are tested when a matcher is entered, against the token it starts at
+public class PackratParser {
+    // the result of matching a matcher at a token, where `end` is the index of the token after the match, or -1 if it
+    // failed
+    private static final class Result {
+        private static final Result FAILED = new Result(-1, null);
+
+        private final int end;
+        private final Capture capture;
+
+        private Result(int end, Capture capture) {
+            this.end = end;
+            this.capture = capture;
+        }
+    }
+
+    private final CompiledGrammar grammar;
+
+    private List<Token> tokens;
+    private Position begin;
+    private List<Map<Matcher, Result>> memo;
+    private Capture[] tokenCaptures;
+    private Capture[] emptyCaptures;
+
+    // names of the named sequences being matched, innermost first
+    private final Deque<String> sources = new ArrayDeque<>();
+    // failures at the furthest token reached, used to report an error if the parse fails
+    private final Set<ParserFailure> failures = new HashSet<>();
+    private int furthest;
+
+    public PackratParser(CompiledGrammar grammar) {
+        assert grammar != null;
+        this.grammar = grammar;
+    }
+
+    // parses the pattern with the given name, reading every token from the generator first
+    public Capture parse(TokenGenerator generator, String patternName) throws TokenException, ParserException {
+        return parse(readTokens(generator), generator.getStartingPosition(), patternName);
+    }
+
+    // parses the 'main' pattern
+    public Capture parse(TokenGenerator generator) throws TokenException, ParserException {
+        return parse(generator, "main");
+    }
+
+    // parses the pattern with the given name from a list of tokens, which must end with an EOF token
+    public Capture parse(List<Token> tokens, Position begin, String patternName) throws ParserException {
+        assert tokens != null;
+        assert !tokens.isEmpty() && tokens.get(tokens.size() - 1).getType() == TokenType.EOF;
+        assert begin != null;
+        assert patternName != null;
+        assert grammar.hasRule(patternName) : "Lookup of '" + patternName + "' failed";
+
+        this.tokens = tokens instanceof RandomAccess ? tokens : new ArrayList<>(tokens);
+        this.begin = begin;
+        this.memo = new ArrayList<>(Collections.nCopies(tokens.size(), null));
+        this.tokenCaptures = new Capture[tokens.size()];
+        this.emptyCaptures = new Capture[tokens.size()];
+
+        sources.clear();
+        failures.clear();
+        furthest = 0;
+
+        try {
+            Result result = match(grammar.getRoot(patternName), 0);
+
+            if (result.end >= 0) {
+                return result.capture;
+            }
+
+            List<ParserException> exceptions = ParserException.generateFrom(failures, tokens.get(furthest));
+
+            if (exceptions.isEmpty()) {
+                throw new ParserException(tokens.get(furthest).getPosition(), "Failed to parse '" + patternName + "'");
+            }
+
+            throw ParserException.combine(exceptions);
+        }
+        finally {
+            this.tokens = null;
+            this.memo = null;
+            this.tokenCaptures = null;
+            this.emptyCaptures = null;
+        }
+    }
+
+    // reads every token from the generator, ending with an EOF token positioned as the Parser positions it
+    static List<Token> readTokens(TokenGenerator generator) throws TokenException {
+        List<Token> tokens = new ArrayList<>();
+        Position begin = generator.getStartingPosition();
+        Token token;
+
+        while ((token = generator.getNext()).getType() != TokenType.EOF) {
+            tokens.add(token);
+        }
+
+        tokens.add(new Token(TokenType.EOF, "", (tokens.isEmpty() ? begin : tokens.get(tokens.size() - 1).getPosition()).after(1)));
+
+        return tokens;
+    }
+
+    private Result match(Matcher matcher, int index) {
+        if (!testPredicates(matcher, index)) {
+            return Result.FAILED;
+        }
+
+        if (matcher instanceof Matcher.TokenMatcher) {
+            return matchToken((Matcher.TokenMatcher) matcher, index);
+        }
+        else if (matcher instanceof Matcher.NothingMatcher) {
+            return new Result(index, getEmptyCapture(index));
+        }
+
+        Map<Matcher, Result> results = memo.get(index);
+        Result result;
+
+        if (results == null) {
+            memo.set(index, results = new IdentityHashMap<>());
+        }
+        else if ((result = results.get(matcher)) != null) {
+            return result;
+        }
+
+        // anything which refers back to this matcher before consuming a token sees it fail
+        results.put(matcher, Result.FAILED);
+
+        if (matcher instanceof Matcher.SequenceMatcher) {
+            result = matchSequence((Matcher.SequenceMatcher) matcher, index);
+        }
+        else {
+            assert matcher instanceof Matcher.BranchMatcher;
+            result = matchBranch((Matcher.BranchMatcher) matcher, index);
+        }
+
+        results.put(matcher, result);
+
+        return result;
+    }
+
+    private Result matchToken(Matcher.TokenMatcher matcher, int index) {
+        Token token = tokens.get(index);
+
+        if (!matcher.matches(token)) {
+            if (index >= furthest) addFailure(index, matcher.getError(token, getSources()));
+            return Result.FAILED;
+        }
+
+        if (tokenCaptures[index] == null) {
+            tokenCaptures[index] = new Capture.TokenCapture(token);
+        }
+
+        return new Result(index + 1, tokenCaptures[index]);
+    }
+
+    private Result matchSequence(Matcher.SequenceMatcher matcher, int index) {
+        List<Capture> captures = new ArrayList<>(matcher.getMatcherCount());
+        int end = index;
+
+        if (matcher.name != null) sources.push(matcher.name);
+
+        try {
+            for (int i = 0; i < matcher.getMatcherCount(); ++i) {
+                Result result = match(matcher.getMatcher(i), end);
+
+                if (result.end < 0) {
+                    return Result.FAILED;
+                }
+
+                captures.add(result.capture);
+                end = result.end;
+            }
+        }
+        finally {
+            if (matcher.name != null) sources.pop();
+        }
+
+        return new Result(end, matcher.generate(captures));
+    }
+
+    private Result matchBranch(Matcher.BranchMatcher matcher, int index) {
+        Result best = Result.FAILED;
+
+        for (int i = 0; i < matcher.getBranchCount(); ++i) {
+            Result result = match(matcher.getBranch(i), index);
+
+            if (result.end > best.end) {
+                if (matcher.isOrdered()) return result;
+                best = result;
+            }
+        }
+
+        return best;
+    }
+
+    private boolean testPredicates(Matcher matcher, int index) {
+        List<MatchPredicate> predicates = matcher.getPredicates();
+
+        if (predicates.isEmpty()) return true;
+
+        MatchPredicate.State state = new MatchPredicate.State(tokens.get(index), getLastPosition(index), getSources());
+        boolean passed = true;
+
+        for (MatchPredicate predicate : predicates) {
+            if (!predicate.test(state)) {
+                if (index >= furthest) addFailure(index, predicate.getError(state));
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    private void addFailure(int index, ParserFailure failure) {
+        if (index > furthest) {
+            failures.clear();
+            furthest = index;
+        }
+
+        failures.add(failure);
+    }
+
+    private List<String> getSources() {
+        return new ArrayList<>(sources);
+    }
+
+    // returns the position of the token before the given one, or the starting position for the first token
+    private Position getLastPosition(int index) {
+        return index == 0 ? begin : tokens.get(index - 1).getPosition();
+    }
+
+    // returns an empty capture positioned at the end of the token before the given one
+    private Capture getEmptyCapture(int index) {
+        if (emptyCaptures[index] == null) {
+            Position last = getLastPosition(index);
+            emptyCaptures[index] = new Capture.EmptyCapture(last.after(0));
+        }
+
+        return emptyCaptures[index];
+    }
+}
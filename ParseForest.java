@@ -0,0 +1,319 @@
+package astify;
+
+import astify.core.Position;
+
+import java.math.BigInteger;
+import java.util.*;
+
+// the results of a parse as a shared packed parse forest
+// each completed sequence is stored once per range of tokens as a symbol, with one alternative per distinct way of
+// parsing it, and alternatives share the symbols of their children, so ambiguous parses take space proportional to the
+// input rather than to the number of derivations
+// derivations are only generated (by calling each sequence's CaptureGenerator) when they are extracted
+public final class ParseForest implements Iterable<Capture> {
+
+    // a sequence completed over a range of tokens
+    // this is only ever seen by the parser, and is never given to a CaptureGenerator
+    static final class Symbol extends Capture {
+        final Matcher.SequenceMatcher matcher;
+        private final List<ConsList<Capture>> alternatives = new ArrayList<>(1);
+
+        // `position` is only used when the sequence has no children to take its position from
+        Symbol(Matcher.SequenceMatcher matcher, ConsList<Capture> children, Position position) {
+            super(children == null ? position : getSpanningPosition(children));
+            this.matcher = matcher;
+            alternatives.add(children);
+        }
+
+        void addAlternative(ConsList<Capture> children) {
+            alternatives.add(children);
+        }
+
+        @Override public String toString() {
+            return "<forest-symbol" + (matcher.name == null ? "" : " '" + matcher.name + "'") + ">";
+        }
+    }
+
+    // a symbol with more than one way of being parsed
+    public static final class Ambiguity {
+        private final String name;
+        private final Position position;
+        private final BigInteger derivations;
+
+        private Ambiguity(String name, Position position, BigInteger derivations) {
+            this.name = name;
+            this.position = position;
+            this.derivations = derivations;
+        }
+
+        // returns the name of the innermost named pattern containing the ambiguity
+        public String getName() {
+            return name;
+        }
+
+        public Position getPosition() {
+            return position;
+        }
+
+        public BigInteger countDerivations() {
+            return derivations;
+        }
+
+        @Override public String toString() {
+            return (name == null ? "<anonymous>" : "'" + name + "'") + " at " + position.toString() + " (" + derivations + " derivations)";
+        }
+    }
+
+    private final List<Capture> roots;
+    private final Map<Object, BigInteger> counts = new IdentityHashMap<>();
+    private final Map<Symbol, Capture> generated = new IdentityHashMap<>();
+
+    ParseForest(List<Capture> roots) {
+        this.roots = new ArrayList<>(roots);
+    }
+
+    public boolean isEmpty() {
+        return roots.isEmpty();
+    }
+
+    // returns the number of distinct derivations of the parse, which may be much larger than the forest itself
+    // derivations through a cycle of empty matches are not counted
+    public BigInteger countDerivations() {
+        BigInteger total = BigInteger.ZERO;
+
+        for (Capture root : roots) {
+            total = total.add(count(root));
+        }
+
+        return total;
+    }
+
+    public boolean isAmbiguous() {
+        return countDerivations().compareTo(BigInteger.ONE) > 0;
+    }
+
+    // returns the derivation with the given index, where 0 <= index < countDerivations()
+    public Capture getDerivation(BigInteger index) {
+        assert index.signum() >= 0;
+
+        for (Capture root : roots) {
+            BigInteger count = count(root);
+
+            if (index.compareTo(count) < 0) {
+                return derive(root, index);
+            }
+
+            index = index.subtract(count);
+        }
+
+        throw new IndexOutOfBoundsException("No derivation " + index);
+    }
+
+    public Capture getFirstDerivation() {
+        return getDerivation(BigInteger.ZERO);
+    }
+
+    // lazily generates each derivation in turn
+    @Override public Iterator<Capture> iterator() {
+        BigInteger count = countDerivations();
+
+        return new Iterator<Capture>() {
+            BigInteger i = BigInteger.ZERO;
+
+            @Override public boolean hasNext() {
+                return i.compareTo(count) < 0;
+            }
+
+            @Override public Capture next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Capture derivation = getDerivation(i);
+                i = i.add(BigInteger.ONE);
+                return derivation;
+            }
+        };
+    }
+
+    // generates every derivation, which should only be used when few are expected
+    public List<Capture> getAllDerivations() {
+        List<Capture> derivations = new ArrayList<>();
+
+        for (Capture derivation : this) {
+            derivations.add(derivation);
+        }
+
+        return derivations;
+    }
+
+    // returns each symbol of the forest which can be parsed in more than one way
+    public List<Ambiguity> getAmbiguities() {
+        List<Ambiguity> ambiguities = new ArrayList<>();
+        Set<Symbol> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Symbol> pending = new ArrayDeque<>();
+        // names of the innermost named symbol containing each pending symbol, where "" is used for none
+        Deque<String> names = new ArrayDeque<>();
+
+        for (Capture root : roots) {
+            if (root instanceof Symbol) {
+                pending.push((Symbol) root);
+                names.push("");
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            Symbol symbol = pending.pop();
+            String name = names.pop();
+            List<Symbol> children = new ArrayList<>();
+            boolean packed = false;
+
+            if (!visited.add(symbol)) continue;
+            if (symbol.matcher.name != null) name = symbol.matcher.name;
+
+            for (ConsList<Capture> alternative : symbol.alternatives) {
+                packed |= collectChildren(alternative, children);
+            }
+
+            if (symbol.alternatives.size() > 1 || packed) {
+                ambiguities.add(new Ambiguity(name.equals("") ? null : name, symbol.spanningPosition, count(symbol)));
+            }
+
+            for (Symbol child : children) {
+                pending.push(child);
+                names.push(name);
+            }
+        }
+
+        return ambiguities;
+    }
+
+    private BigInteger count(Capture capture) {
+        if (!(capture instanceof Symbol)) return BigInteger.ONE;
+
+        Symbol symbol = (Symbol) capture;
+        BigInteger count = counts.get(symbol);
+
+        if (count == null) {
+            // a symbol which is part of its own derivation is counted as having none while it is being counted
+            counts.put(symbol, BigInteger.ZERO);
+            count = BigInteger.ZERO;
+
+            for (ConsList<Capture> alternative : symbol.alternatives) {
+                count = count.add(countList(alternative));
+            }
+
+            counts.put(symbol, count);
+        }
+
+        return count;
+    }
+
+    private BigInteger countList(ConsList<Capture> list) {
+        if (list == null) return BigInteger.ONE;
+
+        BigInteger count = counts.get(list);
+
+        if (count == null) {
+            if (list.isPacked()) {
+                count = BigInteger.ZERO;
+
+                for (ConsList<Capture> alternative : list.getAlternatives()) {
+                    count = count.add(countList(alternative));
+                }
+            }
+            else {
+                count = countList(list.getPrevious()).multiply(count(list.getValue()));
+            }
+
+            counts.put(list, count);
+        }
+
+        return count;
+    }
+
+    // generates the derivation of a capture with the given index
+    // a symbol with a single derivation is generated once and then shared between every derivation containing it
+    private Capture derive(Capture capture, BigInteger index) {
+        if (!(capture instanceof Symbol)) return capture;
+
+        Symbol symbol = (Symbol) capture;
+        boolean unique = count(symbol).equals(BigInteger.ONE);
+
+        if (unique && generated.containsKey(symbol)) {
+            return generated.get(symbol);
+        }
+
+        for (ConsList<Capture> alternative : symbol.alternatives) {
+            BigInteger count = countList(alternative);
+
+            if (index.compareTo(count) < 0) {
+                List<Capture> children = new ArrayList<>();
+                Capture result;
+
+                deriveList(alternative, index, children);
+                result = symbol.matcher.generate(children);
+
+                if (unique) generated.put(symbol, result);
+
+                return result;
+            }
+
+            index = index.subtract(count);
+        }
+
+        throw new IndexOutOfBoundsException("No derivation " + index + " of " + symbol.toString());
+    }
+
+    private void deriveList(ConsList<Capture> list, BigInteger index, List<Capture> children) {
+        if (list == null) return;
+
+        if (list.isPacked()) {
+            for (ConsList<Capture> alternative : list.getAlternatives()) {
+                BigInteger count = countList(alternative);
+
+                if (index.compareTo(count) < 0) {
+                    deriveList(alternative, index, children);
+                    return;
+                }
+
+                index = index.subtract(count);
+            }
+
+            throw new IndexOutOfBoundsException("No derivation " + index);
+        }
+        else {
+            BigInteger[] split = index.divideAndRemainder(count(list.getValue()));
+            deriveList(list.getPrevious(), split[0], children);
+            children.add(derive(list.getValue(), split[1]));
+        }
+    }
+
+    // adds the symbols in the list to `children`, returning true if any part of the list was packed
+    private static boolean collectChildren(ConsList<Capture> list, List<Symbol> children) {
+        for (; list != null; list = list.getPrevious()) {
+            if (list.isPacked()) {
+                for (ConsList<Capture> alternative : list.getAlternatives()) {
+                    collectChildren(alternative, children);
+                }
+
+                return true;
+            }
+
+            if (list.getValue() instanceof Symbol) {
+                children.add((Symbol) list.getValue());
+            }
+        }
+
+        return false;
+    }
+
+    private static Position getSpanningPosition(ConsList<Capture> children) {
+        ConsList<Capture> last = children, first;
+
+        while (last.isPacked()) last = last.getAlternatives().get(0);
+
+        for (first = last; first.getPrevious() != null || first.isPacked(); ) {
+            first = first.isPacked() ? first.getAlternatives().get(0) : first.getPrevious();
+        }
+
+        return first.getValue().spanningPosition.to(last.getValue().spanningPosition);
+    }
+}
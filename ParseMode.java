@@ -0,0 +1,14 @@
+package astify;
+
+// which results the Parser looks for
+public enum ParseMode {
+    // every derivation of the input, parsing until every state has failed or the input ends
+    ALL,
+    // only the result preferred by declaration order, where an earlier branch is preferred over a later one from the
+    // same branch matcher, and branch matchers are compared in the order a backtracking parser would try them, so the
+    // result is the one such a parser would find (e.g. the inner `if` takes the `else` of `if a if b 1 else 2` when
+    // the `else` is optional), dropping the states a result is preferred over as soon as it is found
+    FIRST,
+    // any one result, stopping as soon as one is found
+    ANY
+}
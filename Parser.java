@@ -2,268 +2,1164 @@ package astify;
 
 import astify.core.Position;
 import astify.token.Token;
+import astify.token.TokenBuffer;
 import astify.token.TokenException;
 import astify.token.TokenGenerator;
 import astify.token.TokenType;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+// a breadth-first parser over a graph structured stack
+// every live state is a position in a SequenceNode, and states which enter the same sequence at the same token share
+// a node, so each named rule is parsed once per starting token regardless of how many parents are waiting on it
+// outside of ParseMode.ALL, states are kept in order of preference and only the first completion of a node at each
+// token is kept: in ParseMode.ANY, states are expanded depth first in the order their branches were declared and the
+// parents of a node are continued in the order they entered it, while in ParseMode.FIRST, which must also order the
+// states of parents sharing a node, pending states are expanded in the order given by Preference
 public class Parser {
-    private static final boolean debugPrint = false;
+    // steps are numbered across every parser, so that a node shared by parsers restored from the same snapshot is
+    // never seen at the same step by more than one of them
+    private static final AtomicLong steps = new AtomicLong();
+
+    // recorded for each call to parse(), which includes reading tokens from the generator
+    @Name("astify.Parse")
+    @Label("Parse")
+    @Category("astify")
+    @Description("A source parsed by a Parser")
+    static class ParseEvent extends Event {
+        @Label("Source") String source;
+        @Label("Size") @Description("The number of tokens fed to the parser") int size;
+        @Label("Peak Active States") int peakActiveStates;
+        @Label("Results") int results;
+    }
 
     private static class PartialResult {
         private final Capture result;
-        private final List<MatchPredicate> predicates;
+        private final ConsList<MatchPredicate> predicates;
         private final List<String> sources;
 
-        private PartialResult(Capture result, List<MatchPredicate> predicates, List<String> sources) {
+        private PartialResult(Capture result, ConsList<MatchPredicate> predicates, List<String> sources) {
             this.result = result;
             this.predicates = predicates;
             this.sources = sources;
         }
     }
 
-    private final List<Matcher> matchers = new ArrayList<>();
-    private final List<MatcherSequence> sequences = new ArrayList<>();
-    private final List<List<MatchPredicate>> predicates = new ArrayList<>();
+    // the state of a parser between two tokens, which a parser of the same pattern can be restored to
+    // nothing is copied to take a snapshot: the active states are shared with the parser until it next changes them,
+    // results are a persistent list, and sequence nodes are only changed at the token they were entered at
+    public static final class Snapshot {
+        private final Matcher.SequenceMatcher root;
+        private final StatePool active;
+        private final ConsList<Capture> results;
+        private final List<ParserException> exceptions;
+        private final ConsList<ParserException> recovered;
+        private final List<SequenceNode> recovering;
+        private final Position lastPosition;
+        private final int tokenIndex;
+
+        private Snapshot(Parser parser) {
+            this.root = parser.root;
+            this.active = parser.active.share();
+            this.results = parser.results;
+            this.exceptions = parser.exceptions;
+            this.recovered = parser.recovered;
+            this.recovering = parser.recovering;
+            this.lastPosition = parser.lastPosition;
+            this.tokenIndex = parser.tokenIndex;
+        }
+
+        // returns the number of tokens fed to the parser before the snapshot was taken
+        public int getTokenIndex() {
+            return tokenIndex;
+        }
+
+        // returns whether the parser was in the same state at this snapshot as at another, taken of a parse of the
+        // same pattern, so that feeding either the same tokens gives the same results
+        // the states must hold the same matchers and predicates, in the same order, over sequence nodes entered at the
+        // same tokens by the same parents, and captures at the same positions which are equal (see sameCapture()), along
+        // with the same choices in ParseMode.FIRST
+        // snapshots taken while recovering, or after any exception, are never the same as another
+        boolean isEquivalent(Snapshot other) {
+            if (root != other.root || tokenIndex != other.tokenIndex || !lastPosition.equals(other.lastPosition)) return false;
+            if (!exceptions.isEmpty() || !other.exceptions.isEmpty() || recovered != null || other.recovered != null) return false;
+            if (recovering != null || other.recovering != null) return false;
+            if (active.size() != other.active.size() || !sameCaptures(results, other.results)) return false;
+
+            Map<SequenceNode, SequenceNode> nodes = new IdentityHashMap<>();
+
+            for (int i = 0; i < active.size(); ++i) {
+                if (active.getMatcher(i) != other.active.getMatcher(i)) return false;
+                if (!samePredicates(active.getPredicates(i), other.active.getPredicates(i))) return false;
+                if (active.getChoices(i) != other.active.getChoices(i)) return false;
+                if (!sameCaptures(active.getCaptures(i), other.active.getCaptures(i))) return false;
+                if (!sameNode(active.getNode(i), other.active.getNode(i), nodes)) return false;
+            }
+
+            return true;
+        }
+
+        // nodes are matched up as they're compared, so a node shared by several states or parents must be matched to
+        // the same node each time
+        private static boolean sameNode(SequenceNode a, SequenceNode b, Map<SequenceNode, SequenceNode> nodes) {
+            SequenceNode matched = nodes.get(a);
+
+            if (matched != null) return matched == b;
+            if (a.matcher != b.matcher || a.start != b.start || a.getParentCount() != b.getParentCount()) return false;
+
+            nodes.put(a, b);
+
+            for (int i = 0; i < a.getParentCount(); ++i) {
+                SequenceNode.Edge edgeA = a.getParent(i), edgeB = b.getParent(i);
+
+                if (edgeA.recursive != edgeB.recursive || !sameCaptures(edgeA.captures, edgeB.captures)) return false;
+                if (!sameNode(edgeA.parent, edgeB.parent, nodes)) return false;
+            }
+
+            return true;
+        }
+
+        private static boolean samePredicates(ConsList<MatchPredicate> a, ConsList<MatchPredicate> b) {
+            for (; a != null && b != null; a = a.getPrevious(), b = b.getPrevious()) {
+                if (a == b) return true;
+                if (a.getValue() != b.getValue()) return false;
+            }
+
+            return a == b;
+        }
+
+        private static boolean sameCaptures(ConsList<Capture> a, ConsList<Capture> b) {
+            if (ConsList.size(a) != ConsList.size(b)) return false;
+
+            for (; a != null; a = a.getPrevious(), b = b.getPrevious()) {
+                if (a == b) return true;
+                if (a.isPacked() || b.isPacked() || !sameCapture(a.getValue(), b.getValue())) return false;
+            }
+
+            return true;
+        }
+
+        // captures of tokens, empty captures and plain lists are the same if they're of the same things at the same
+        // positions, and any other capture is the same if it's at the same position and equals() the other
+        // captures made by CaptureGenerators are therefore only the same as another if their class overrides equals()
+        private static boolean sameCapture(Capture a, Capture b) {
+            if (a == b) return true;
+            if (a == null || b == null || a.getClass() != b.getClass() || !a.spanningPosition.equals(b.spanningPosition)) return false;
+
+            if (a instanceof Capture.TokenCapture) {
+                Capture.TokenCapture tokenA = (Capture.TokenCapture) a, tokenB = (Capture.TokenCapture) b;
+                return tokenA.getType() == tokenB.getType() && tokenA.getValue().equals(tokenB.getValue());
+            }
+            else if (a instanceof Capture.EmptyCapture) {
+                return true;
+            }
+            else if (a.getClass() == Capture.ListCapture.class) {
+                Capture.ListCapture listA = (Capture.ListCapture) a, listB = (Capture.ListCapture) b;
+
+                if (listA.size() != listB.size()) return false;
+
+                for (int i = 0; i < listA.size(); ++i) {
+                    if (!sameCapture(listA.get(i), listB.get(i))) return false;
+                }
+
+                return true;
+            }
+
+            return a.equals(b);
+        }
+    }
+
+    // the sources of a node, which are only found if a predicate looks at them
+    private static final class LazySources extends AbstractList<String> {
+        private final SequenceNode node;
+        private List<String> sources;
+
+        private LazySources(SequenceNode node) {
+            this.node = node;
+        }
+
+        @Override public String get(int index) {
+            return getSources().get(index);
+        }
+
+        @Override public int size() {
+            return getSources().size();
+        }
+
+        private List<String> getSources() {
+            if (sources == null) sources = Parser.getSources(node);
+            return sources;
+        }
+    }
+
+    // states which consumed the last token, and the pool the states consuming the next token are moved into
+    // these are swapped after each token, so their storage is reused
+    private StatePool active = new StatePool();
+    private StatePool consumed = new StatePool();
+    // states which consumed the token before the next, kept until it is consumed so that they can be expanded again
+    // to diagnose it if every state fails
+    private StatePool previous = new StatePool();
+    // states still to be expanded for the next token, used as a stack
+    private final StatePool pending = new StatePool();
+    // states waiting on a token matcher for the next token, and those states grouped by the token they expect
+    private final StatePool waiting = new StatePool();
+    private final TokenIndex waitingIndex = new TokenIndex();
+    // sequence nodes entered at the next token, used to share nodes between parents
+    private final Map<Matcher.SequenceMatcher, SequenceNode> nodes = new HashMap<>();
     private final List<PartialResult> partialResults = new ArrayList<>();
 
+    // failures for the current token, reused between tokens
+    // these are only built once every state has failed on a token, by expanding the states before it again and
+    // matching it against them, so nothing is recorded while parsing succeeds
+    private final Set<ParserFailure> failures = new HashSet<>();
+    // failures of states which no recovery node encloses, which are only reported if no recovery captures the failure
+    // of the token, as otherwise they're only consequences of it (such as a list of statements expecting its end)
+    private final Set<ParserFailure> outerFailures = new HashSet<>();
+    // whether the failures being recorded are of a state which no recovery node encloses
+    private boolean failingOutside = false;
+    // whether each node diagnosed so far is within a recovery node
+    private final Map<SequenceNode, Boolean> withinRecovery = new HashMap<>();
+    // partial results whose predicates failed on the current token, kept to report them if every state fails
+    private final List<PartialResult> failedPartials = new ArrayList<>();
+
+    private ParserListener listener = null;
     private boolean finished = false;
-    private List<Capture> results;
+    private boolean diagnosing = false;
+    private boolean forestMode = false;
+    private ParseMode parseMode = ParseMode.ALL;
+    private int tokenIndex;
+    // identifies the token being parsed, and changes whenever the token index does
+    private long step;
+    private Capture emptyCapture;
+    private Matcher.SequenceMatcher root;
+    // a persistent list, so that snapshots can share it
+    private ConsList<Capture> results;
     private Position lastPosition;
     private List<ParserException> exceptions;
+    // exceptions recovered from so far, as a persistent list
+    private ConsList<ParserException> recovered;
+    // the recovery nodes skipping tokens until their sync token, once every state has failed within them, or null
+    // if not recovering
+    private List<SequenceNode> recovering;
+    // the position of the token states are being expanded for, which recovery nodes record as their start
+    private Position nextPosition;
+
+    private final ParserMetrics metrics = ParserMetrics.create();
+    // the work done for the current token, added to the metrics once the token has been parsed
+    private int branchesExpanded, sequencesEntered, predicatesTested, resultsProduced;
 
     public Parser() {
         exceptions = new ArrayList<>();
-        results = new ArrayList<>();
+        results = null;
     }
 
+    // compiles the pattern on its own and sets up the parser to parse it
+    // prefer setup(CompiledGrammar, String, Position) when parsing more than once
     public void setup(Pattern pattern, Position begin) {
         assert pattern != null;
-        assert begin != null;
 
-        Matcher.SequenceMatcher sequenceMatcher = pattern.getMatcher() instanceof Matcher.SequenceMatcher
-                ? (Matcher.SequenceMatcher) pattern.getMatcher()
-                : new Matcher.SequenceMatcher(null, Collections.singletonList(pattern.getMatcher()), (captures) -> captures.get(0));
+        Matcher.SequenceMatcher root = new CompiledGrammar.Compiler().compileRoot(pattern);
+        CompiledGrammar.Compiler.computeFirstSets(Collections.singletonList(root));
+
+        setup(root, begin);
+    }
+
+    // sets up the parser to parse the pattern with the given name from a compiled grammar
+    public void setup(CompiledGrammar grammar, String patternName, Position begin) {
+        assert grammar != null;
+        assert patternName != null;
+        assert grammar.hasRule(patternName) : "Lookup of '" + patternName + "' failed";
+        setup(grammar.getRoot(patternName), begin);
+    }
+
+    // sets up the parser to parse the 'main' pattern of a compiled grammar
+    public void setup(CompiledGrammar grammar, Position begin) {
+        setup(grammar, "main", begin);
+    }
+
+    private void setup(Matcher.SequenceMatcher root, Position begin) {
+        assert root != null;
+        assert begin != null;
+        assert !forestMode || parseMode == ParseMode.ALL : "Forest mode requires ParseMode.ALL";
 
-        matchers.clear();
-        sequences.clear();
-        predicates.clear();
+        active.clear();
+        consumed.clear();
+        previous.clear();
+        pending.clear();
+        clearWaiting();
+        nodes.clear();
+        partialResults.clear();
 
-        sequences.add(new MatcherSequence(null, sequenceMatcher));
-        matchers.add(pattern.getMatcher());
-        predicates.add(new ArrayList<>());
-        results = new ArrayList<>();
+        active.add(null, new SequenceNode(root, 0), null, null, null);
+        this.root = root;
+        results = null;
         exceptions = new ArrayList<>();
+        recovered = null;
+        recovering = null;
         lastPosition = begin;
+        emptyCapture = null;
+        tokenIndex = 0;
+        step = steps.incrementAndGet();
         finished = false;
     }
 
+    // returns the state of the parser before the next token is fed to it, in constant time
+    // the parser can be restored to it any number of times, to try different tokens from the same point
+    public Snapshot snapshot() {
+        assert root != null : "Parser has not been set up";
+        assert !finished;
+        return new Snapshot(this);
+    }
+
+    // restores the parser to a snapshot taken of a parser set up with the same pattern, in constant time
+    public void restore(Snapshot snapshot) {
+        assert snapshot != null;
+        assert root == null || root == snapshot.root : "Snapshot was taken of a different pattern";
+
+        partialResults.clear();
+        nodes.clear();
+
+        active = snapshot.active.share();
+        root = snapshot.root;
+        results = snapshot.results;
+        exceptions = snapshot.exceptions;
+        recovered = snapshot.recovered;
+        recovering = snapshot.recovering;
+        lastPosition = snapshot.lastPosition;
+        tokenIndex = snapshot.tokenIndex;
+        step = steps.incrementAndGet();
+        emptyCapture = null;
+        finished = false;
+    }
+
+    // returns a new parser in the same state as this one, in constant time, which tokens can be fed to separately
+    // a parser and its forks share sequence nodes, so shouldn't be used from different threads at once
+    public Parser fork() {
+        Parser parser = new Parser();
+
+        parser.forestMode = forestMode;
+        parser.parseMode = parseMode;
+        parser.listener = listener;
+        parser.restore(snapshot());
+
+        return parser;
+    }
+
+    // when enabled, completed sequences are built into a ParseForest rather than being generated for each derivation
+    // this must be set before parsing
+    public void setForestMode(boolean forestMode) {
+        this.forestMode = forestMode;
+    }
+
+    public boolean isForestMode() {
+        return forestMode;
+    }
+
+    // sets which results are looked for, which must be set before parsing
+    public void setParseMode(ParseMode parseMode) {
+        assert parseMode != null;
+        this.parseMode = parseMode;
+    }
+
+    public ParseMode getParseMode() {
+        return parseMode;
+    }
+
+    // sets the listener told what the parser does, or null for none, which may be changed between tokens
+    public void setListener(ParserListener listener) {
+        this.listener = listener;
+    }
+
+    public ParserListener getListener() {
+        return listener;
+    }
+
+    // returns the work done by this parser, which is also added to ParserMetrics.getGlobal()
+    public ParserMetrics getMetrics() {
+        return metrics;
+    }
+
+    // returns every derivation of the input, which in forest mode are only generated when this is called
     public List<Capture> getResults() {
-        return results;
+        return forestMode ? getForest().getAllDerivations() : ConsList.toList(results);
+    }
+
+    // returns the parse forest of the results so far, which requires forest mode
+    public ParseForest getForest() {
+        assert forestMode : "Parser is not in forest mode";
+        return new ParseForest(ConsList.toList(results));
     }
 
     public void parse(TokenGenerator generator) throws TokenException {
+        ParseEvent event = new ParseEvent();
+        long tokenizeNanos = 0, parseNanos = 0, time = System.nanoTime(), now;
+        int tokens = 0, peakActiveStates = 0;
         Token token;
 
-        while ((token = generator.getNext()).getType() != TokenType.EOF) {
-            feedToken(token);
+        event.begin();
 
-            if (hasError()) {
-                return;
+        try {
+            while ((token = generator.getNext()).getType() != TokenType.EOF) {
+                tokenizeNanos += (now = System.nanoTime()) - time;
+                feedToken(token);
+                parseNanos += (time = System.nanoTime()) - now;
+
+                ++tokens;
+                if (active.size() > peakActiveStates) peakActiveStates = active.size();
+
+                if (hasError()) {
+                    return;
+                }
+
+                // the result is known once there's nothing left which could be preferred to it
+                if (parseMode != ParseMode.ALL && active.isEmpty() && recovering == null) {
+                    break;
+                }
             }
-        }
 
-        finish();
+            tokenizeNanos += (now = System.nanoTime()) - time;
+            finish();
+            parseNanos += System.nanoTime() - now;
+        }
+        finally {
+            metrics.addTime(tokenizeNanos, parseNanos);
+            commitEvent(event, generator.getStartingPosition().source.getName(), tokens, peakActiveStates);
+        }
     }
 
-    public void feedToken(Token token) {
-        Set<ParserFailure> failures = new HashSet<>();
+    // parses every token of a buffer, which the parser should have been set up to parse from the start of its source
+    // the parser is fed a view of each token rather than a Token of its own, and token captures refer to the buffer,
+    // so nothing is created for tokens which aren't captured
+    public void parse(TokenBuffer buffer) {
+        ParseEvent event = new ParseEvent();
+        TokenBuffer.View view = buffer.view();
+        long time = System.nanoTime();
+        int tokens = 0, peakActiveStates = 0;
 
-        if (sequences.size() == 0) return;
+        event.begin();
 
-        prepare();
+        try {
+            while (tokens < buffer.size()) {
+                view.setIndex(tokens);
+                feedToken(view);
 
-        for (PartialResult partial : partialResults) {
-            for (MatchPredicate predicate : partial.predicates) {
-                MatchPredicate.State state = new MatchPredicate.State(token, lastPosition, partial.sources);
+                ++tokens;
+                if (active.size() > peakActiveStates) peakActiveStates = active.size();
 
-                if (predicate.test(state)) {
-                    results.add(partial.result);
+                if (hasError()) {
+                    return;
                 }
-                else {
-                    failures.add(predicate.getError(state));
+
+                // the result is known once there's nothing left which could be preferred to it
+                if (parseMode != ParseMode.ALL && active.isEmpty() && recovering == null) {
+                    break;
                 }
             }
+
+            finish();
         }
+        finally {
+            metrics.addTime(0, System.nanoTime() - time);
+            commitEvent(event, buffer.getSource().getName(), tokens, peakActiveStates);
+        }
+    }
 
-        partialResults.clear();
+    private void commitEvent(ParseEvent event, String source, int tokens, int peakActiveStates) {
+        if (event.shouldCommit()) {
+            event.source = source;
+            event.size = tokens;
+            event.peakActiveStates = peakActiveStates;
+            event.results = getResultCount();
+            event.commit();
+        }
+    }
 
-        for (int i = matchers.size() - 1; i >= 0; --i) {
-            Matcher.TokenMatcher matcher = (Matcher.TokenMatcher) matchers.get(i);
-            MatcherSequence sequence = sequences.get(i);
-            MatchPredicate.State predicateState = new MatchPredicate.State(token, lastPosition, getSources(sequence));
-            boolean failed = false;
+    public void feedToken(Token token) {
+        assert !finished;
 
-            if (matcher.matches(token)) {
-                sequences.set(i, sequence.addCapture(new Capture.TokenCapture(token)));
-            }
-            else {
-                failed = true;
-                failures.add(matcher.getError(token, predicateState.sources));
-            }
+        if (recovering != null) {
+            recover(token);
+            addMetrics(1);
+            advance(token);
+            return;
+        }
 
-            if (!failed) {
-                for (MatchPredicate predicate : predicates.get(i)) {
-                    if (!predicate.test(predicateState)) {
-                        failed = true;
-                        failures.add(predicate.getError(predicateState));
-                    }
+        if (active.isEmpty()) return;
+
+        prepare(token);
+
+        for (PartialResult partial : partialResults) {
+            if (testPredicates(partial.predicates, token, partial.sources, false)) {
+                // states still active may be preferred to a partial result, so it only stands until another is found
+                if (parseMode == ParseMode.ALL || results == null) {
+                    results = ConsList.append(results, partial.result);
+                    ++resultsProduced;
+                    if (listener != null) listener.resultEmitted(tokenIndex, partial.result);
                 }
-            }
 
-            if (failed) {
-                matchers.remove(i);
-                sequences.remove(i);
-                predicates.remove(i);
+                if (parseMode == ParseMode.ANY) {
+                    if (listener != null) reportDied(waiting, "a result was found");
+                    clearWaiting();
+                }
             }
             else {
-                predicates.get(i).clear();
+                failedPartials.add(partial);
             }
         }
 
-        lastPosition = token.getPosition();
+        partialResults.clear();
+
+        consume(token);
+
+        if (active.isEmpty() && (parseMode == ParseMode.ALL || results == null)) {
+            List<SequenceNode> recoveries = diagnose(token);
 
-        if (sequences.size() == 0) {
             exceptions = ParserException.generateFrom(failures, token);
+            failures.clear();
+
+            if (!recoveries.isEmpty()) {
+                recovering = recoveries;
+                recover(token);
+            }
         }
+
+        clearWaiting();
+        failedPartials.clear();
+        nodes.clear();
+        addMetrics(1);
+        advance(token);
+    }
+
+    private void addMetrics(int tokensFed) {
+        metrics.add(tokensFed, active.size(), branchesExpanded, sequencesEntered, predicatesTested, resultsProduced);
+        branchesExpanded = sequencesEntered = predicatesTested = resultsProduced = 0;
+    }
+
+    private void advance(Token token) {
+        emptyCapture = null;
+        lastPosition = token.getPosition();
+        ++tokenIndex;
+        step = steps.incrementAndGet();
     }
 
     public void finish() {
         feedToken(new Token(TokenType.EOF, "", lastPosition.after(1)));
 
-        for (int i = sequences.size() - 1; i >= 0; --i) {
-            updateMatcher(i);
-        }
+        // states which consumed the EOF token may still complete their sequences, but nothing more is expanded
+        finished = true;
+        prepare(null);
+        addMetrics(0);
+    }
+
+    // returns whether any state is left which could consume another token, including a recovery skipping tokens
+    public boolean hasActiveStates() {
+        return !finished && (!active.isEmpty() || recovering != null);
+    }
+
+    // returns the number of results so far without building them, where in forest mode a result with several
+    // derivations counts once
+    public int getResultCount() {
+        return ConsList.size(results);
     }
 
+    // returns whether the parse has failed, which it hasn't while recovering from an error
     public boolean hasError() {
-        return exceptions.size() > 0 && sequences.size() == 0 && results.size() == 0;
+        return recovering == null && exceptions.size() > 0 && active.size() == 0 && results == null;
     }
 
+    // returns why every state failed on the last token, if the parse has failed
     public List<ParserException> getExceptions() {
         return exceptions;
     }
 
-    private List<String> getSources(MatcherSequence sequence) {
+    // returns every exception recovered from, in the order they were found, followed by those of getExceptions() if
+    // the parse has failed
+    public List<ParserException> getAllExceptions() {
+        List<ParserException> all = ConsList.toList(recovered);
+
+        if (hasError()) all.addAll(exceptions);
+
+        return all;
+    }
+
+    private static List<String> getSources(SequenceNode node) {
         List<String> sources = new ArrayList<>();
 
-        while (sequence != null) {
-            if (sequence.getMatcherName() != null && !sequence.getMatcherName().equals(""))
-                sources.add(sequence.getMatcherName());
-            sequence = sequence.getParent();
+        while (node != null) {
+            if (node.getMatcherName() != null && !node.getMatcherName().equals(""))
+                sources.add(node.getMatcherName());
+            node = node.getFirstParent();
         }
 
         return sources;
     }
 
-    private void prepare() {
-        assert !finished;
+    // returns the sources of the last path from the node to the root, following the last parent to enter each node
+    // unless it leads back to a node already on the path through left recursion, where the first is followed instead
+    private static List<String> getLastSources(SequenceNode node) {
+        List<String> sources = new ArrayList<>();
+        Set<SequenceNode> visited = new HashSet<>();
 
-        if (debugPrint) System.out.println("prepare()");
+        while (node != null) {
+            SequenceNode parent = node.getParentCount() == 0 ? null : node.getParent(node.getParentCount() - 1).parent;
 
-        for (int i = sequences.size() - 1; i >= 0; --i) {
-            updateMatcher(i);
+            if (visited.add(node) && node.getMatcherName() != null && !node.getMatcherName().equals(""))
+                sources.add(node.getMatcherName());
+            node = parent == null || visited.contains(parent) ? node.getFirstParent() : parent;
         }
 
-        for (int i = sequences.size() - 1; i >= 0; --i) {
-            boolean first = true;
+        return sources;
+    }
 
-            if (debugPrint) System.out.print(i + " / " + (sequences.size() - 1) + " :: ");
+    private void prepare(Token nextToken) {
+        StatePool swap = previous;
 
-            while (true) {
-                MatcherSequence sequence = sequences.get(i);
-                Matcher matcher = matchers.get(i);
+        previous = active;
+        active = swap;
+        active.clear();
+        nextPosition = nextToken == null ? null : nextToken.getPosition();
+        addPending(previous);
+        expand(nextToken);
+    }
 
-                predicates.get(i).addAll(matcher.getPredicates());
+    // whether pending states are expanded in order of preference rather than depth first, which is only needed for
+    // ParseMode.FIRST, as depth first order doesn't account for nodes being shared (see Preference)
+    private boolean inPreferenceOrder() {
+        return parseMode == ParseMode.FIRST && !diagnosing;
+    }
 
-                if (!first) { if (debugPrint) System.out.print(" -> "); }
-                else first = false;
+    // adds every state of the pool to the pending states, to be expanded in the order they're in
+    private void addPending(StatePool pool) {
+        if (!inPreferenceOrder()) {
+            pending.addReversed(pool);
+            return;
+        }
 
-                if (debugPrint) System.out.print(matcher.toString() + " [" + matcher.getPredicates().size() + "/" + predicates.get(i).size() + "]");
+        for (int i = 0; i < pool.size(); ++i) {
+            pending.addInOrder(pool.getMatcher(i), pool.getNode(i), pool.getCaptures(i), pool.getPredicates(i), pool.getChoices(i));
+        }
+    }
 
-                if (matcher instanceof Matcher.NothingMatcher) {
-                    sequences.set(i, sequence.addCapture(new Capture.EmptyCapture(new Position(lastPosition.source, lastPosition.line2, lastPosition.char2))));
+    private void addPending(Matcher matcher, SequenceNode node, ConsList<Capture> captures, ConsList<MatchPredicate> predicates, ConsList<Object> choices) {
+        if (inPreferenceOrder()) pending.addInOrder(matcher, node, captures, predicates, choices);
+        else pending.add(matcher, node, captures, predicates, null);
+    }
+
+    // expands every pending state until it is waiting on a token matcher, has completed, or has been pruned
+    // if `nextToken` is given, branches which cannot start with it are pruned rather than expanded
+    private void expand(Token nextToken) {
+        while (!pending.isEmpty()) {
+            int top = pending.size() - 1;
+
+            if (inPreferenceOrder()) pending.movePreferredLast();
+
+            Matcher matcher = pending.getMatcher(top);
+            SequenceNode node = pending.getNode(top);
+            ConsList<Capture> captures = pending.getCaptures(top);
+            ConsList<MatchPredicate> predicates = pending.getPredicates(top);
+            ConsList<Object> choices = pending.getChoices(top);
+
+            pending.removeLast();
 
-                    if (updateMatcher(i)) break;
+            if (matcher == null) {
+                int captured = ConsList.size(captures);
+
+                if (captured == node.matcher.getMatcherCount()) {
+                    complete(node, captures, predicates, choices);
+                    continue;
+                }
+                else if (finished) {
+                    if (tracing()) listener.stateDied(tokenIndex, node.matcher.toString(), node.start, node.matcher.getMatcher(captured).toString(), "the input has ended");
+                    continue;
                 }
-                else if (matcher instanceof Matcher.BranchMatcher) {
-                    Matcher.BranchMatcher branchMatcher = (Matcher.BranchMatcher) matcher;
-                    List<MatchPredicate> predicateList = predicates.get(i);
-                    sequence.notifyBranch(branchMatcher.getBranchCount());
-                    sequences.remove(i);
-                    matchers.remove(i);
-                    predicates.remove(i);
-
-                    for (int j = 0; j < branchMatcher.getBranchCount(); ++j) {
-                        sequences.add(i + j, sequence);
-                        matchers.add(i + j, branchMatcher.getBranch(j));
-                        predicates.add(i + j, new ArrayList<>(predicateList));
+
+                matcher = node.matcher.getMatcher(captured);
+            }
+
+            predicates = ConsList.appendAll(predicates, matcher.getPredicates());
+
+            if (tracing()) listener.stateCreated(tokenIndex, node.matcher.toString(), node.start, matcher.toString());
+
+            if (matcher instanceof Matcher.TokenMatcher) {
+                waitingIndex.add((Matcher.TokenMatcher) matcher, waiting.size());
+                waiting.add(matcher, node, captures, predicates, choices);
+            }
+            else if (matcher instanceof Matcher.NothingMatcher) {
+                addPending(null, node, ConsList.append(captures, getEmptyCapture()), predicates, choices);
+            }
+            else if (matcher instanceof Matcher.BranchMatcher) {
+                Matcher.BranchMatcher branchMatcher = (Matcher.BranchMatcher) matcher;
+
+                // pushed in reverse so that branches are expanded in the order they were declared
+                for (int j = branchMatcher.getBranchCount() - 1; j >= 0; --j) {
+                    Matcher branch = branchMatcher.getBranch(j);
+
+                    if (nextToken != null && !branch.canStartWith(nextToken)) {
+                        if (tracing()) listener.stateDied(tokenIndex, node.matcher.toString(), node.start, branch.toString(), "it cannot start with " + nextToken);
                     }
+                    else {
+                        addPending(branch, node, captures, predicates, inPreferenceOrder() ? ConsList.append(choices, j) : null);
+                        ++branchesExpanded;
+                        if (tracing()) listener.branchForked(tokenIndex, node.matcher.toString(), node.start, matcher.toString(), branch.toString());
+                    }
+                }
+            }
+            else {
+                assert matcher instanceof Matcher.SequenceMatcher;
+                enter((Matcher.SequenceMatcher) matcher, node, captures, predicates, choices);
+            }
+        }
+    }
 
-                    i += branchMatcher.getBranchCount();
+    // enters a sequence from the given parent, sharing the node of any other parent which entered it at this token
+    // nodes are only shared when there are no pending predicates, as those apply to the next token consumed within it
+    // while diagnosing, nodes are only shared with the parent's own ancestors, so that each state has a single path
+    // to the root as it did before states were shared
+    private void enter(Matcher.SequenceMatcher matcher, SequenceNode parent, ConsList<Capture> captures, ConsList<MatchPredicate> predicates, ConsList<Object> choices) {
+        SequenceNode node = diagnosing ? getAncestor(matcher, parent) : predicates == null ? nodes.get(matcher) : null;
 
-                    break;
+        if (node == null) {
+            node = new SequenceNode(matcher, tokenIndex);
+            node.addParent(parent, captures, choices);
+            if (matcher instanceof Matcher.RecoverMatcher) node.startPosition = nextPosition;
+            ++sequencesEntered;
+            if (predicates == null) nodes.put(matcher, node);
+            addPending(null, node, null, predicates, null);
+        }
+        else {
+            SequenceNode.Edge edge = node.addParent(parent, captures, choices, parseMode != ParseMode.ALL && isAncestor(node, parent));
+
+            // the node may already have completed without consuming anything, which this parent must also see
+            for (int i = node.getCompletionCount() - 1; i >= 0; --i) {
+                SequenceNode.Completion completion = node.getCompletion(i);
+                addPending(null, edge.parent, ConsList.append(edge.captures, completion.result), completion.predicates, inPreferenceOrder() ? ConsList.append(edge.choices, completion.choices) : null);
+            }
+        }
+    }
+
+    // returns the node of the matcher entered at this token on the way to entering `parent`, if there is one
+    private SequenceNode getAncestor(Matcher.SequenceMatcher matcher, SequenceNode parent) {
+        for (; parent != null && parent.start == tokenIndex; parent = parent.getFirstParent()) {
+            if (parent.matcher == matcher) return parent;
+        }
+
+        return null;
+    }
+
+    // returns whether `node` was entered at this token on the way to entering `parent`
+    private boolean isAncestor(SequenceNode node, SequenceNode parent) {
+        for (; parent != null && parent.start == tokenIndex; parent = parent.getFirstParent()) {
+            if (parent == node) return true;
+        }
+
+        return false;
+    }
+
+    // generates the capture for a completed sequence and passes it on to every parent of its node
+    private void complete(SequenceNode node, ConsList<Capture> captures, ConsList<MatchPredicate> predicates, ConsList<Object> choices) {
+        Capture result;
+
+        if (parseMode != ParseMode.ALL && predicates == null && !diagnosing) {
+            // any later completion at this token continues exactly as the first did, which is preferred to it as
+            // states are expanded in order of preference
+            if (node.completionStep == step) {
+                if (tracing()) listener.stateDied(tokenIndex, node.matcher.toString(), node.start, "<end>", "the sequence has already completed here");
+                return;
+            }
+
+            node.completionStep = step;
+        }
+
+        if (forestMode) {
+            // another derivation of a symbol already passed on to its parents only needs adding to that symbol
+            // symbols are left alone while diagnosing, as they may already be part of a result
+            if (predicates == null && !diagnosing && node.symbol != null && node.symbolStep == step) {
+                node.symbol.addAlternative(captures);
+                if (tracing()) listener.sequenceCompleted(tokenIndex, node.matcher.toString(), node.start, node.symbol);
+                return;
+            }
+
+            result = new ParseForest.Symbol(node.matcher, captures, captures == null ? getEmptyCapture().spanningPosition : null);
+
+            if (predicates == null && !diagnosing) {
+                node.symbol = (ParseForest.Symbol) result;
+                node.symbolStep = step;
+            }
+        }
+        else {
+            result = node.matcher.generate(ConsList.toList(captures));
+        }
+
+        if (tracing()) listener.sequenceCompleted(tokenIndex, node.matcher.toString(), node.start, result);
+
+        if (node.isRoot()) {
+            if (diagnosing) {
+                // results are never produced while diagnosing failures
+            }
+            else if (predicates == null) {
+                if (parseMode != ParseMode.ALL) {
+                    // states expanded before this are preferred to it and replace it if they complete, but every
+                    // state still pending is not
+                    if (listener != null) reportDied(pending, "a preferred result was found");
+                    results = null;
+                    pending.clear();
+
+                    if (parseMode == ParseMode.ANY) {
+                        if (listener != null) reportDied(waiting, "a result was found");
+                        clearWaiting();
+                    }
                 }
-                else if (matcher instanceof Matcher.SequenceMatcher) {
-                    Matcher.SequenceMatcher sequenceMatcher = (Matcher.SequenceMatcher) matcher;
-                    sequence.notifySubSequence();
-                    sequences.set(i, new MatcherSequence(sequence, sequenceMatcher));
-                    if (updateMatcher(i)) break;
+
+                results = ConsList.append(results, result);
+                ++resultsProduced;
+                if (listener != null) listener.resultEmitted(tokenIndex, result);
+            }
+            else {
+                partialResults.add(new PartialResult(result, predicates, getSources(node)));
+            }
+
+            return;
+        }
+
+        if (node.start == tokenIndex) {
+            node.addCompletion(result, predicates, choices);
+        }
+
+        if (inPreferenceOrder()) {
+            // each parent continues with the choices it had made followed by those made within the node
+            for (int i = 0; i < node.getParentCount(); ++i) {
+                SequenceNode.Edge edge = node.getParent(i);
+                pending.addInOrder(null, edge.parent, ConsList.append(edge.captures, result), predicates, ConsList.append(edge.choices, choices));
+            }
+        }
+        else if (parseMode == ParseMode.ALL) {
+            for (int i = node.getParentCount() - 1; i >= 0; --i) {
+                SequenceNode.Edge edge = node.getParent(i);
+                pending.add(null, edge.parent, ConsList.append(edge.captures, result), predicates, null);
+            }
+        }
+        else {
+            // parents which entered the node again through left recursion did so from an earlier branch than the one
+            // completing it, so they are preferred to the others, which are pushed first
+            for (int pass = 0; pass < 2; ++pass) {
+                for (int i = node.getParentCount() - 1; i >= 0; --i) {
+                    SequenceNode.Edge edge = node.getParent(i);
+
+                    if (edge.recursive == (pass == 1)) {
+                        pending.add(null, edge.parent, ConsList.append(edge.captures, result), predicates, null);
+                    }
                 }
-                else if (matcher instanceof Matcher.GeneratorMatcher) {
-                    Matcher.GeneratorMatcher generatorMatcher = (Matcher.GeneratorMatcher) matcher;
-                    matchers.set(i, generatorMatcher.generate());
+            }
+        }
+    }
+
+    // matches the token against every waiting state, keeping those which match as the active states
+    // only the states expecting the token are visited, unless the listener must be told of every state which doesn't
+    // match
+    private void consume(Token token) {
+        StatePool swap;
+        Capture capture = null;
+
+        if (listener != null) {
+            for (int i = 0; i < waiting.size(); ++i) {
+                capture = consume(i, token, capture);
+            }
+        }
+        else {
+            // the states expecting any value of the token's type and those expecting its value are merged back into
+            // the order they were expanded in, which is their order of preference
+            int ofType = waitingIndex.getFirstOfType(token), ofKind = waitingIndex.getFirstOfKind(token);
+
+            while (ofType != -1 || ofKind != -1) {
+                if (ofKind == -1 || ofType != -1 && ofType < ofKind) {
+                    capture = consume(ofType, token, capture);
+                    ofType = waitingIndex.getNext(ofType);
                 }
                 else {
-                    assert matcher instanceof Matcher.TokenMatcher;
-                    break;
+                    capture = consume(ofKind, token, capture);
+                    ofKind = waitingIndex.getNext(ofKind);
+                }
+            }
+        }
+
+        swap = active;
+        active = consumed;
+        consumed = swap;
+
+        if (forestMode) packActive();
+    }
+
+    // matches the token against the waiting state at index `i`, returning the capture of the token shared by every
+    // state which consumes it, which is `capture` unless this is the first
+    private Capture consume(int i, Token token, Capture capture) {
+        Matcher.TokenMatcher matcher = (Matcher.TokenMatcher) waiting.getMatcher(i);
+        SequenceNode node = waiting.getNode(i);
+        ConsList<MatchPredicate> predicates = waiting.getPredicates(i);
+
+        if (!matcher.matches(token)) {
+            if (listener != null) listener.stateDied(tokenIndex, node.matcher.toString(), node.start, matcher.toString(), "it does not match " + token);
+            return capture;
+        }
+
+        if (predicates != null && !testPredicates(predicates, token, new LazySources(node), false)) {
+            if (listener != null) listener.stateDied(tokenIndex, node.matcher.toString(), node.start, matcher.toString(), "a predicate failed on " + token);
+            return capture;
+        }
+
+        if (capture == null) capture = createTokenCapture(token);
+        consumed.add(null, node, ConsList.append(waiting.getCaptures(i), capture), null, waiting.getChoices(i));
+
+        return capture;
+    }
+
+    // records why the waiting state at index `i` failed to match the token, being the failure of its matcher or, if
+    // that matched, of each of its predicates
+    private void diagnose(int i, Token token) {
+        Matcher.TokenMatcher matcher = (Matcher.TokenMatcher) waiting.getMatcher(i);
+        SequenceNode node = waiting.getNode(i);
+        ConsList<MatchPredicate> predicates = waiting.getPredicates(i);
+
+        failingOutside = !isWithinRecovery(node);
+
+        if (!matcher.matches(token)) {
+            addFailure(matcher.getError(token, getLastSources(node)));
+        }
+        else if (predicates != null) {
+            testPredicates(predicates, token, getLastSources(node), true);
+        }
+    }
+
+    // a view of a TokenBuffer moves on to the next token, so its capture refers to the token's index in the buffer
+    private static Capture createTokenCapture(Token token) {
+        if (token instanceof TokenBuffer.View) {
+            TokenBuffer.View view = (TokenBuffer.View) token;
+            return new Capture.TokenCapture(view.getBuffer(), view.getIndex());
+        }
+
+        return new Capture.TokenCapture(token);
+    }
+
+    // tests every predicate against the next token, stopping at the first to fail unless diagnosing, in which case
+    // the failure of every predicate which fails is recorded
+    private boolean testPredicates(ConsList<MatchPredicate> predicates, Token token, List<String> sources, boolean diagnose) {
+        MatchPredicate.State state = new MatchPredicate.State(token, lastPosition, sources);
+        boolean passed = true;
+
+        for (; predicates != null; predicates = predicates.getPrevious()) {
+            ++predicatesTested;
+
+            if (!predicates.getValue().test(state)) {
+                if (!diagnose) return false;
+                addFailure(predicates.getValue().getError(state));
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    // merges active states which have made the same number of captures in the same node into one state with packed
+    // captures, as they would otherwise be expanded identically until their node completes
+    private void packActive() {
+        Map<SequenceNode, List<Integer>> groups = new LinkedHashMap<>();
+        StatePool swap;
+
+        for (int i = 0; i < active.size(); ++i) {
+            groups.computeIfAbsent(active.getNode(i), (ignored) -> new ArrayList<>(1)).add(i);
+        }
+
+        if (groups.size() == active.size()) return;
+
+        for (Map.Entry<SequenceNode, List<Integer>> entry : groups.entrySet()) {
+            List<Integer> group = entry.getValue();
+
+            while (!group.isEmpty()) {
+                int captured = ConsList.size(active.getCaptures(group.get(0)));
+                List<ConsList<Capture>> alternatives = new ArrayList<>();
+
+                for (Iterator<Integer> it = group.iterator(); it.hasNext(); ) {
+                    ConsList<Capture> captures = active.getCaptures(it.next());
+
+                    if (ConsList.size(captures) == captured) {
+                        alternatives.add(captures);
+                        it.remove();
+                    }
                 }
+
+                consumed.add(null, entry.getKey(), alternatives.size() == 1 ? alternatives.get(0) : ConsList.pack(alternatives), null, null);
+            }
+        }
+
+        active.clear();
+        swap = active;
+        active = consumed;
+        consumed = swap;
+    }
+
+    // records why every state failed to match the token, once no state matched it, and returns the recovery nodes
+    // to skip to the next sync token from
+    // the states before the token are expanded again without pruning any branches or sharing any nodes, so there is
+    // a state for every path through the grammar, and these are matched in the reverse of the order they were
+    // expanded in, as failures differing only in their sources keep the sources of the first recorded
+    private List<SequenceNode> diagnose(Token token) {
+        List<SequenceNode> recoveries = new ArrayList<>();
+
+        // partial results are results of the root, so are outside every recovery node
+        failingOutside = true;
+
+        for (PartialResult partial : failedPartials) {
+            testPredicates(partial.predicates, token, partial.sources, true);
+        }
+
+        clearWaiting();
+        nodes.clear();
+        diagnosing = true;
+        nextPosition = token.getPosition();
+        addPending(previous);
+        expand(null);
+        diagnosing = false;
+
+        for (int i = waiting.size() - 1; i >= 0; --i) {
+            diagnose(i, token);
+        }
+
+        findRecoveries(recoveries);
+
+        if (recoveries.isEmpty()) failures.addAll(outerFailures);
+
+        outerFailures.clear();
+        withinRecovery.clear();
+        failingOutside = false;
+
+        return recoveries;
+    }
+
+    private void addFailure(ParserFailure failure) {
+        if (failingOutside) outerFailures.add(failure);
+        else failures.add(failure);
+    }
+
+    // returns whether a recovery node encloses the node through any of its parents
+    private boolean isWithinRecovery(SequenceNode start) {
+        Boolean within = withinRecovery.get(start);
+        Deque<SequenceNode> stack = new ArrayDeque<>();
+        Set<SequenceNode> visited = new HashSet<>();
+
+        if (within != null) return within;
+
+        within = false;
+        stack.push(start);
+
+        while (!within && !stack.isEmpty()) {
+            SequenceNode node = stack.pop();
+            Boolean known = withinRecovery.get(node);
+
+            if (!visited.add(node)) continue;
+
+            if (known != null) {
+                within = known;
+                continue;
             }
 
-            if (debugPrint) System.out.println();
+            within = node.matcher instanceof Matcher.RecoverMatcher;
+
+            for (int i = node.getParentCount() - 1; i >= 0; --i) {
+                stack.push(node.getParent(i).parent);
+            }
         }
+
+        withinRecovery.put(start, within);
+        return within;
     }
 
-    private boolean updateMatcher(int i) {
-        MatcherSequence sequence = sequences.get(i);
+    // adds the innermost recovery node enclosing each waiting state, in the order the states were expanded, following
+    // every parent of shared nodes and skipping any node already visited
+    private void findRecoveries(List<SequenceNode> recoveries) {
+        Set<SequenceNode> visited = new HashSet<>();
+        Deque<SequenceNode> stack = new ArrayDeque<>();
+
+        for (int i = 0; i < waiting.size(); ++i) {
+            stack.push(waiting.getNode(i));
 
-        if (sequence.isFinished()) {
-            MatcherSequence.CompletionPair pair = sequence.complete();
+            while (!stack.isEmpty()) {
+                SequenceNode node = stack.pop();
 
-            if (pair.sequence == null) {
+                if (!visited.add(node)) continue;
 
-                if (predicates.get(i).size() > 0) {
-                    partialResults.add(new PartialResult(pair.result, predicates.get(i), getSources(sequence)));
+                if (node.matcher instanceof Matcher.RecoverMatcher) {
+                    recoveries.add(node);
+                    continue;
                 }
-                else {
-                    results.add(pair.result);
+
+                for (int j = node.getParentCount() - 1; j >= 0; --j) {
+                    stack.push(node.getParent(j).parent);
                 }
+            }
+        }
+    }
 
-                sequences.remove(i);
-                matchers.remove(i);
-                predicates.remove(i);
+    // matches the token against the sync token of every recovery, completing each it matches with an error capture
+    // spanning every token within it, from its first up to the sync token, and continuing from there as if it had
+    // been consumed normally
+    // if the input ends first, the parse fails with the exceptions recovery began with
+    private void recover(Token token) {
+        boolean synced = false;
 
-                return true;
+        for (SequenceNode node : recovering) {
+            if (((Matcher.RecoverMatcher) node.matcher).sync.matches(token)) {
+                assert node.startPosition != null;
+                active.add(null, node, ConsList.append(null, new Capture.ErrorCapture(node.startPosition.to(token.getPosition()), exceptions)), null, null);
+                synced = true;
             }
-            else {
-                sequences.set(i, pair.sequence.addCapture(pair.result));
-                return updateMatcher(i);
+        }
+
+        if (synced) {
+            recovered = ConsList.appendAll(recovered, exceptions);
+            exceptions = new ArrayList<>();
+            recovering = null;
+        }
+        else if (token.getType() == TokenType.EOF) {
+            recovering = null;
+        }
+    }
+
+    private void clearWaiting() {
+        waiting.clear();
+        waitingIndex.clear();
+    }
+
+    // whether the listener should be told what the parser does, which it isn't while diagnosing failures
+    private boolean tracing() {
+        return listener != null && !diagnosing;
+    }
+
+    // tells the listener that every state of the pool is being dropped
+    private void reportDied(StatePool pool, String reason) {
+        for (int i = 0; i < pool.size(); ++i) {
+            SequenceNode node = pool.getNode(i);
+            Matcher matcher = pool.getMatcher(i);
+            int captured = ConsList.size(pool.getCaptures(i));
+
+            if (matcher == null) {
+                matcher = captured < node.matcher.getMatcherCount() ? node.matcher.getMatcher(captured) : null;
             }
+
+            listener.stateDied(tokenIndex, node.matcher.toString(), node.start, matcher == null ? "<end>" : matcher.toString(), reason);
         }
-        else {
-            matchers.set(i, sequence.getNextMatcher());
+    }
+
+    // returns an empty capture positioned at the end of the last token, shared by every state for this token
+    private Capture getEmptyCapture() {
+        if (emptyCapture == null) {
+            emptyCapture = new Capture.EmptyCapture(lastPosition.after(0));
         }
-        return false;
+
+        return emptyCapture;
     }
 }
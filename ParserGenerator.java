@@ -0,0 +1,500 @@
+package astify;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// generates the Java source of a recursive descent parser for the patterns of a PatternBuilder
+// the generated class has one method per named pattern and one per other pattern it contains, matching tokens by
+// comparing their types and values directly, and needs nothing but the public classes of astify at runtime
+// CaptureGenerators and MatchPredicates are written as code where they are SourceGenerators and SourcePredicates (as
+// those the builder creates itself are), and otherwise become abstract methods of the generated class, which a
+// subclass implements, e.g. by calling the generator the builder was given
+// generated parsers match patterns as the PackratParser does, but only memoize named patterns
+public final class ParserGenerator {
+    private final String builderName;
+    private final Map<String, Pattern> environment;
+    private final List<String> ruleNames;
+    // the index of each named pattern, used to memoize it, where a pattern with several names takes the first
+    private final Map<Pattern, Integer> rules = new IdentityHashMap<>();
+    private final Map<Pattern, String> methods = new IdentityHashMap<>();
+    // the abstract methods standing in for CaptureGenerators and MatchPredicates which can't be written as code
+    private final Map<Object, String> abstractMethods = new IdentityHashMap<>();
+    private final StringBuilder abstractSource = new StringBuilder();
+    private final StringBuilder source = new StringBuilder();
+
+    // a CaptureGenerator which can be written as code, so that generated parsers don't need it at runtime
+    interface SourceGenerator extends CaptureGenerator {
+        // returns an expression generating the capture from the given expression, a List<Capture>
+        String write(String captures);
+    }
+
+    // a MatchPredicate which can be written as code, so that generated parsers don't need it at runtime
+    interface SourcePredicate extends MatchPredicate {
+        // returns an expression which is null if the predicate holds for the token `next`, following a token at the
+        // position `last`, or otherwise the message of its failure
+        String write(String next, String last);
+    }
+
+    public ParserGenerator(PatternBuilder builder) {
+        assert builder != null;
+
+        environment = builder.getEnvironment();
+        builderName = builder.getClass().getName();
+        ruleNames = new ArrayList<>(environment.keySet());
+        // sorted so that the same source is generated for every instance of the builder
+        Collections.sort(ruleNames);
+
+        for (String name : ruleNames) {
+            if (!rules.containsKey(environment.get(name))) rules.put(environment.get(name), rules.size());
+        }
+
+        for (String name : ruleNames) {
+            call(environment.get(name), "index");
+        }
+    }
+
+    // returns the source of a class with the given name, in the given package (or the default package if null)
+    // the class is abstract if any CaptureGenerator or MatchPredicate couldn't be written as code
+    public String generate(String packageName, String className) {
+        assert className != null;
+
+        StringBuilder result = new StringBuilder();
+        boolean isAbstract = abstractSource.length() > 0;
+
+        result.append("// generated from ").append(builderName).append(" by astify.ParserGenerator\n");
+
+        if (packageName != null) {
+            result.append("package ").append(packageName).append(";\n");
+        }
+
+        result.append("\n");
+        result.append("import astify.Capture;\n");
+        result.append("import astify.ParserException;\n");
+        result.append("import astify.core.Position;\n");
+        result.append("import astify.token.Token;\n");
+        result.append("import astify.token.TokenException;\n");
+        result.append("import astify.token.TokenGenerator;\n");
+        result.append("import astify.token.TokenType;\n");
+        result.append("\n");
+        result.append("import java.util.*;\n");
+        result.append("\n");
+        result.append("// each method matches from the token at `index`, sets `capture` on success, and returns the index of the token\n");
+        result.append("// after the match, or -1 if it fails\n");
+        result.append("public ").append(isAbstract ? "abstract " : "").append("class ").append(className).append(" {\n");
+        result.append(RUNTIME.replace("%RULES%", String.valueOf(rules.size())));
+        result.append("\n");
+        result.append("    // matches the pattern with the given name\n");
+        result.append("    private int parseRule(String name, int index) {\n");
+        result.append("        switch (name) {\n");
+
+        for (String name : ruleNames) {
+            result.append("            case ").append(literal(name)).append(": return ").append(methods.get(environment.get(name))).append("(index);\n");
+        }
+
+        result.append("            default: throw new IllegalArgumentException(\"Lookup of '\" + name + \"' failed\");\n");
+        result.append("        }\n");
+        result.append("    }\n");
+        result.append(abstractSource);
+        result.append(source);
+        result.append("}\n");
+
+        return result.toString();
+    }
+
+    // writes the generated source to `<className>.java` in the given directory, returning the file written
+    public Path write(Path directory, String packageName, String className) throws IOException {
+        Path file = directory.resolve(className + ".java");
+        Files.write(file, generate(packageName, className).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    // returns an expression matching the pattern from the token at `index`, generating a method for it if needed
+    String call(Pattern pattern, String index) {
+        if (pattern instanceof Pattern.TokenPattern && !pattern.hasPredicates() && !rules.containsKey(pattern)) {
+            return ((Pattern.TokenPattern) pattern).generateToken(index);
+        }
+
+        // references without predicates of their own call the method of the pattern they refer to directly
+        if (pattern instanceof Pattern.GeneratorPattern && !pattern.hasPredicates() && !rules.containsKey(pattern)) {
+            return call(((Pattern.GeneratorPattern) pattern).resolve(), index);
+        }
+
+        String method = methods.get(pattern);
+
+        if (method == null) {
+            method = rules.containsKey(pattern) ? generateRule(pattern) : generateMethod(pattern, "match" + methods.size());
+        }
+
+        return method + "(" + index + ")";
+    }
+
+    // returns an expression generating a capture from the given expression, a List<Capture>, declaring an abstract
+    // method for the generator if it can't be written as code
+    // `name` is that of the sequence the generator belongs to, or null
+    String generateCapture(CaptureGenerator generator, String name, String captures) {
+        if (generator instanceof SourceGenerator) {
+            return ((SourceGenerator) generator).write(captures);
+        }
+
+        String method = abstractMethods.get(generator);
+
+        if (method == null) {
+            method = "generate" + abstractMethods.size() + (name == null ? "" : "_" + identifier(name));
+            abstractMethods.put(generator, method);
+            abstractSource.append("\n");
+            abstractSource.append("    // generates the capture of ").append(name == null ? "a sequence" : "the sequence '" + name + "'").append(" from the captures of its parts\n");
+            abstractSource.append("    protected abstract Capture ").append(method).append("(List<Capture> captures);\n");
+        }
+
+        return method + "(" + captures + ")";
+    }
+
+    // returns an expression which is null if the predicate holds for the token at `index`, or otherwise the message of
+    // its failure, declaring an abstract method for the predicate if it can't be written as code
+    private String test(MatchPredicate predicate, String index) {
+        String next = "tokens.get(" + index + ")", last = "last(" + index + ")";
+
+        if (predicate instanceof SourcePredicate) {
+            return ((SourcePredicate) predicate).write(next, last);
+        }
+
+        String method = abstractMethods.get(predicate);
+
+        if (method == null) {
+            method = "test" + abstractMethods.size();
+            abstractMethods.put(predicate, method);
+            abstractSource.append("\n");
+            abstractSource.append("    // returns null if the predicate holds for the token `next`, or otherwise the message of its failure\n");
+            abstractSource.append("    protected abstract String ").append(method).append("(Token next, Position last);\n");
+        }
+
+        return method + "(" + next + ", " + last + ")";
+    }
+
+    // returns a Java string literal for the given value, or "null"
+    static String literal(String value) {
+        if (value == null) return "null";
+
+        StringBuilder result = new StringBuilder("\"");
+
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"': result.append("\\\""); break;
+                case '\\': result.append("\\\\"); break;
+                case '\n': result.append("\\n"); break;
+                case '\r': result.append("\\r"); break;
+                case '\t': result.append("\\t"); break;
+                default:
+                    if (c < 0x20 || c > 0x7e) result.append(String.format("\\u%04x", (int) c));
+                    else result.append(c);
+            }
+        }
+
+        return result.append("\"").toString();
+    }
+
+    private static String identifier(String name) {
+        return name.replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    // generates the method for a named pattern, which memoizes its result at each token
+    // anything which refers back to the pattern before consuming a token sees it fail
+    private String generateRule(Pattern pattern) {
+        int rule = rules.get(pattern);
+        String name = "rule" + rule;
+        String body;
+
+        for (String ruleName : ruleNames) {
+            if (environment.get(ruleName) == pattern) {
+                name += "_" + identifier(ruleName);
+                break;
+            }
+        }
+
+        methods.put(pattern, name);
+        body = "if (isMemoized(" + rule + ", index)) return recall(" + rule + ", index);\n" +
+                "start(" + rule + ", index);\n" +
+                "return memoize(" + rule + ", index, " + generateMethod(pattern, name + "_match") + "(index));";
+        appendMethod(name, body);
+
+        return name;
+    }
+
+    private String generateMethod(Pattern pattern, String name) {
+        StringBuilder body = new StringBuilder();
+
+        if (!rules.containsKey(pattern)) methods.put(pattern, name);
+
+        for (MatchPredicate predicate : pattern.getPredicates()) {
+            body.append("if (fail(index, ").append(test(predicate, "index")).append(")) return -1;\n");
+        }
+
+        body.append(pattern.generate(this));
+        appendMethod(name, body.toString());
+
+        return name;
+    }
+
+    private void appendMethod(String name, String body) {
+        source.append("\n");
+        source.append("    private int ").append(name).append("(int index) {\n");
+
+        for (String line : body.split("\n")) {
+            source.append("        ").append(line).append("\n");
+        }
+
+        source.append("    }\n");
+    }
+
+    // the fields and methods of every generated class, which the generated methods are built from
+    // failures are described as the Parser describes them (see ParserException.generateFrom), from the names of the
+    // sequences they happened in and what was expected, or the message of a predicate's failure
+    private static final String RUNTIME = String.join("\n",
+        "    private List<Token> tokens;",
+        "    private Position begin;",
+        "    private Capture capture;",
+        "    private Capture[] tokenCaptures;",
+        "    private Capture[] emptyCaptures;",
+        "    // memoized results of each named pattern at each token, where 0 is unknown, 1 is failed, and otherwise the end",
+        "    // index plus 2",
+        "    private int[][] memoEnds;",
+        "    private Capture[][] memoCaptures;",
+        "",
+        "    // names of the named sequences being matched, outermost first",
+        "    private final List<String> sources = new ArrayList<>();",
+        "    // failures at the furthest token reached, as the sources they happened in, and what was expected there or the",
+        "    // message of a predicate's failure",
+        "    private final List<List<String>> failureSources = new ArrayList<>();",
+        "    private final List<String> failureExpected = new ArrayList<>();",
+        "    private final List<String> failureMessages = new ArrayList<>();",
+        "    private int furthest;",
+        "",
+        "    // parses the pattern with the given name, reading every token from the generator first",
+        "    public Capture parse(TokenGenerator generator, String patternName) throws TokenException, ParserException {",
+        "        List<Token> tokens = new ArrayList<>();",
+        "        Position begin = generator.getStartingPosition();",
+        "        Token token;",
+        "",
+        "        while ((token = generator.getNext()).getType() != TokenType.EOF) {",
+        "            tokens.add(token);",
+        "        }",
+        "",
+        "        tokens.add(new Token(TokenType.EOF, \"\", (tokens.isEmpty() ? begin : tokens.get(tokens.size() - 1).getPosition()).after(1)));",
+        "",
+        "        return parse(tokens, begin, patternName);",
+        "    }",
+        "",
+        "    // parses the 'main' pattern",
+        "    public Capture parse(TokenGenerator generator) throws TokenException, ParserException {",
+        "        return parse(generator, \"main\");",
+        "    }",
+        "",
+        "    // parses the pattern with the given name from a list of tokens, which must end with an EOF token",
+        "    public Capture parse(List<Token> tokens, Position begin, String patternName) throws ParserException {",
+        "        assert tokens != null;",
+        "        assert !tokens.isEmpty() && tokens.get(tokens.size() - 1).getType() == TokenType.EOF;",
+        "        assert begin != null;",
+        "        assert patternName != null;",
+        "",
+        "        this.tokens = tokens instanceof RandomAccess ? tokens : new ArrayList<>(tokens);",
+        "        this.begin = begin;",
+        "        this.tokenCaptures = new Capture[tokens.size()];",
+        "        this.emptyCaptures = new Capture[tokens.size()];",
+        "        this.memoEnds = new int[%RULES%][];",
+        "        this.memoCaptures = new Capture[%RULES%][];",
+        "",
+        "        sources.clear();",
+        "        failureSources.clear();",
+        "        failureExpected.clear();",
+        "        failureMessages.clear();",
+        "        furthest = 0;",
+        "",
+        "        try {",
+        "            if (parseRule(patternName, 0) >= 0) {",
+        "                return capture;",
+        "            }",
+        "",
+        "            throw getError(patternName);",
+        "        }",
+        "        finally {",
+        "            this.tokens = null;",
+        "            this.tokenCaptures = null;",
+        "            this.emptyCaptures = null;",
+        "            this.memoEnds = null;",
+        "            this.memoCaptures = null;",
+        "            this.capture = null;",
+        "        }",
+        "    }",
+        "",
+        "    // matches a token with the given type, and value unless it is null",
+        "    private int token(int index, TokenType type, String value) {",
+        "        Token token = tokens.get(index);",
+        "",
+        "        if (token.getType() != type || value != null && !value.equals(token.getValue())) {",
+        "            if (index >= furthest) {",
+        "                addFailure(index, token.getType() == type ? \"'\" + value + \"'\" : value == null ? type.toString() : type + \" \\\"\" + value + \"\\\"\", null);",
+        "            }",
+        "",
+        "            return -1;",
+        "        }",
+        "",
+        "        if (tokenCaptures[index] == null) {",
+        "            tokenCaptures[index] = new Capture.TokenCapture(token);",
+        "        }",
+        "",
+        "        capture = tokenCaptures[index];",
+        "",
+        "        return index + 1;",
+        "    }",
+        "",
+        "    // returns whether a predicate failed at the token at `index`, given the message of its failure or null",
+        "    private boolean fail(int index, String message) {",
+        "        if (message == null) return false;",
+        "        if (index >= furthest) addFailure(index, null, message);",
+        "        return true;",
+        "    }",
+        "",
+        "    // returns the position of the token before `index`",
+        "    private Position last(int index) {",
+        "        return index == 0 ? begin : tokens.get(index - 1).getPosition();",
+        "    }",
+        "",
+        "    // called when a named sequence is entered and exited, to describe where failures happen",
+        "    private void enter(String name) {",
+        "        sources.add(name);",
+        "    }",
+        "",
+        "    private void exit() {",
+        "        sources.remove(sources.size() - 1);",
+        "    }",
+        "",
+        "    // returns an empty capture positioned at the end of the token before `index`",
+        "    private Capture empty(int index) {",
+        "        if (emptyCaptures[index] == null) {",
+        "            emptyCaptures[index] = new Capture.EmptyCapture(last(index).after(0));",
+        "        }",
+        "",
+        "        return emptyCaptures[index];",
+        "    }",
+        "",
+        "    // returns a list capture of the given captures, or an empty list capture positioned as empty(index)",
+        "    private Capture list(List<Capture> captures, int index) {",
+        "        return captures.isEmpty() ? Capture.ListCapture.createEmpty(empty(index).spanningPosition) : Capture.ListCapture.createFrom(captures);",
+        "    }",
+        "",
+        "    private boolean isMemoized(int rule, int index) {",
+        "        return memoEnds[rule] != null && memoEnds[rule][index] != 0;",
+        "    }",
+        "",
+        "    // returns the memoized result of a named pattern, setting `capture`",
+        "    private int recall(int rule, int index) {",
+        "        capture = memoCaptures[rule][index];",
+        "        return memoEnds[rule][index] - 2;",
+        "    }",
+        "",
+        "    // marks a named pattern as failed until it has been matched",
+        "    private void start(int rule, int index) {",
+        "        if (memoEnds[rule] == null) {",
+        "            memoEnds[rule] = new int[tokens.size()];",
+        "            memoCaptures[rule] = new Capture[tokens.size()];",
+        "        }",
+        "",
+        "        memoEnds[rule][index] = 1;",
+        "    }",
+        "",
+        "    private int memoize(int rule, int index, int end) {",
+        "        memoEnds[rule][index] = end + 2;",
+        "        memoCaptures[rule][index] = end < 0 ? null : capture;",
+        "        return end;",
+        "    }",
+        "",
+        "    private void addFailure(int index, String expected, String message) {",
+        "        if (index > furthest) {",
+        "            failureSources.clear();",
+        "            failureExpected.clear();",
+        "            failureMessages.clear();",
+        "            furthest = index;",
+        "        }",
+        "",
+        "        failureSources.add(new ArrayList<>(sources));",
+        "        failureExpected.add(expected);",
+        "        failureMessages.add(message);",
+        "    }",
+        "",
+        "    // groups the failures by the sources they happened in, giving an exception for what each group expected and one",
+        "    // for each predicate's failure",
+        "    private ParserException getError(String patternName) {",
+        "        Token token = tokens.get(furthest);",
+        "        Map<String, Set<String>> expected = new LinkedHashMap<>(), messages = new LinkedHashMap<>();",
+        "        List<ParserException> exceptions = new ArrayList<>();",
+        "        int shared = 0;",
+        "",
+        "        // the outermost sources shared by every failure are left out, as long as each keeps one",
+        "        while (isShared(shared)) ++shared;",
+        "",
+        "        for (int i = 0; i < failureSources.size(); ++i) {",
+        "            String source = describeSources(failureSources.get(i).subList(shared, failureSources.get(i).size()));",
+        "",
+        "            expected.computeIfAbsent(source, (ignored) -> new LinkedHashSet<>());",
+        "            messages.computeIfAbsent(source, (ignored) -> new LinkedHashSet<>());",
+        "",
+        "            if (failureExpected.get(i) != null) expected.get(source).add(failureExpected.get(i));",
+        "            else messages.get(source).add(failureMessages.get(i));",
+        "        }",
+        "",
+        "        for (String source : expected.keySet()) {",
+        "            List<String> values = new ArrayList<>(expected.get(source));",
+        "            String in = expected.size() > 1 ? \" (in parse as \" + source + \")\" : \"\";",
+        "",
+        "            if (values.size() == 1) {",
+        "                exceptions.add(new ParserException(token.getPosition(), \"Expected \" + values.get(0) + \", got \" + token + in));",
+        "            }",
+        "            else if (values.size() > 1) {",
+        "                exceptions.add(new ParserException(token.getPosition(), \"Expected one of {\" + String.join(\", \", values) + \"}, got \" + token + in));",
+        "            }",
+        "",
+        "            for (String message : messages.get(source)) {",
+        "                exceptions.add(new ParserException(token.getPosition(), message + in));",
+        "            }",
+        "        }",
+        "",
+        "        if (exceptions.isEmpty()) {",
+        "            return new ParserException(token.getPosition(), \"Failed to parse '\" + patternName + \"'\");",
+        "        }",
+        "",
+        "        return ParserException.combine(exceptions);",
+        "    }",
+        "",
+        "    private boolean isShared(int index) {",
+        "        for (List<String> sources : failureSources) {",
+        "            if (sources.size() <= index + 1 || !sources.get(index).equals(failureSources.get(0).get(index))) return false;",
+        "        }",
+        "",
+        "        return !failureSources.isEmpty();",
+        "    }",
+        "",
+        "    // joins the names of the sources, where names repeated are written once followed by '*', and only the innermost",
+        "    // three are kept",
+        "    private static String describeSources(List<String> sources) {",
+        "        List<String> names = new ArrayList<>();",
+        "",
+        "        for (String source : sources) {",
+        "            String last = names.isEmpty() ? null : names.get(names.size() - 1);",
+        "",
+        "            if (source.equals(last) || (source + \"*\").equals(last)) names.set(names.size() - 1, source + \"*\");",
+        "            else names.add(source);",
+        "        }",
+        "",
+        "        if (names.size() > 3) {",
+        "            names = names.subList(names.size() - 3, names.size());",
+        "            names.set(0, \"...\" + names.get(0));",
+        "        }",
+        "",
+        "        return String.join(\".\", names);",
+        "    }",
+        ""
+    );
+}
@@ -0,0 +1,22 @@
+package astify;
+
+// receives what a Parser does as it parses, to trace how it handled an input
+// sequences and matchers are described by their toString(), along with the index of the token the sequence was
+// entered at, and `tokenIndex` is the index of the next token to be consumed
+// every method does nothing by default, and a parser without a listener does no work to describe what it does
+public interface ParserListener {
+    // a state of the sequence reached `matcher`, which it will match next
+    default void stateCreated(int tokenIndex, String sequence, int start, String matcher) {}
+
+    // a state of the sequence waiting on `matcher` was dropped, for the reason given
+    default void stateDied(int tokenIndex, String sequence, int start, String matcher, String reason) {}
+
+    // a state of the sequence waiting on the branch matcher `matcher` was split into a state for `branch`
+    default void branchForked(int tokenIndex, String sequence, int start, String matcher, String branch) {}
+
+    // the sequence completed, producing `result`, which is a ParseForest.Symbol in forest mode
+    default void sequenceCompleted(int tokenIndex, String sequence, int start, Capture result) {}
+
+    // a result of the pattern being parsed was found
+    default void resultEmitted(int tokenIndex, Capture result) {}
+}
@@ -0,0 +1,258 @@
+package astify;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// counts the work done by parsers, kept for each Parser and summed over every parser in the JVM
+// a parser's own counters are plain fields, as only the thread using the parser adds to them (and they should be read
+// on that thread), while those of the JVM are striped so that parsers on different threads don't contend on them
+// a parser only adds to them once per token
+// the metrics of the JVM can be published as the platform MBean named OBJECT_NAME, see register()
+public abstract class ParserMetrics implements ParserMetricsMXBean {
+    public static final String OBJECT_NAME = "astify:type=ParserMetrics";
+
+    private static final Totals global = new Totals();
+    private static boolean registered = false;
+
+    // an immutable copy of the counters at one point in time
+    public static final class Snapshot {
+        private final long tokensFed, activeStates, peakActiveStates, branchesExpanded, sequencesEntered;
+        private final long predicatesTested, resultsProduced, tokenizeNanos, parseNanos;
+
+        private Snapshot(ParserMetrics metrics) {
+            tokensFed = metrics.getTokensFed();
+            activeStates = metrics.getActiveStates();
+            peakActiveStates = metrics.getPeakActiveStates();
+            branchesExpanded = metrics.getBranchesExpanded();
+            sequencesEntered = metrics.getSequencesEntered();
+            predicatesTested = metrics.getPredicatesTested();
+            resultsProduced = metrics.getResultsProduced();
+            tokenizeNanos = metrics.getTokenizeNanos();
+            parseNanos = metrics.getParseNanos();
+        }
+
+        public long getTokensFed() {
+            return tokensFed;
+        }
+
+        public long getPeakActiveStates() {
+            return peakActiveStates;
+        }
+
+        public double getAverageActiveStates() {
+            return tokensFed == 0 ? 0 : (double) activeStates / tokensFed;
+        }
+
+        public long getBranchesExpanded() {
+            return branchesExpanded;
+        }
+
+        public long getSequencesEntered() {
+            return sequencesEntered;
+        }
+
+        public long getPredicatesTested() {
+            return predicatesTested;
+        }
+
+        public long getResultsProduced() {
+            return resultsProduced;
+        }
+
+        public long getTokenizeNanos() {
+            return tokenizeNanos;
+        }
+
+        public long getParseNanos() {
+            return parseNanos;
+        }
+
+        @Override public String toString() {
+            return "tokens fed: " + tokensFed +
+                    ", active states: " + peakActiveStates + " peak, " + String.format("%.2f", getAverageActiveStates()) + " average" +
+                    ", branches expanded: " + branchesExpanded +
+                    ", sequences entered: " + sequencesEntered +
+                    ", predicates tested: " + predicatesTested +
+                    ", results produced: " + resultsProduced +
+                    ", tokenizing: " + tokenizeNanos / 1000000 + "ms" +
+                    ", parsing: " + parseNanos / 1000000 + "ms";
+        }
+    }
+
+    // the counters of a single parser, which are also added to those of the JVM
+    private static final class Counters extends ParserMetrics {
+        private long tokensFed, activeStates, peakActiveStates, branchesExpanded, sequencesEntered;
+        private long predicatesTested, resultsProduced, tokenizeNanos, parseNanos;
+
+        @Override public long getTokensFed() {
+            return tokensFed;
+        }
+
+        @Override long getActiveStates() {
+            return activeStates;
+        }
+
+        @Override public long getPeakActiveStates() {
+            return peakActiveStates;
+        }
+
+        @Override public long getBranchesExpanded() {
+            return branchesExpanded;
+        }
+
+        @Override public long getSequencesEntered() {
+            return sequencesEntered;
+        }
+
+        @Override public long getPredicatesTested() {
+            return predicatesTested;
+        }
+
+        @Override public long getResultsProduced() {
+            return resultsProduced;
+        }
+
+        @Override public long getTokenizeNanos() {
+            return tokenizeNanos;
+        }
+
+        @Override public long getParseNanos() {
+            return parseNanos;
+        }
+
+        @Override void add(int tokensFed, int activeStates, int branchesExpanded, int sequencesEntered, int predicatesTested, int resultsProduced) {
+            this.tokensFed += tokensFed;
+            this.activeStates += activeStates;
+            this.peakActiveStates = Math.max(this.peakActiveStates, activeStates);
+            this.branchesExpanded += branchesExpanded;
+            this.sequencesEntered += sequencesEntered;
+            this.predicatesTested += predicatesTested;
+            this.resultsProduced += resultsProduced;
+            global.add(tokensFed, activeStates, branchesExpanded, sequencesEntered, predicatesTested, resultsProduced);
+        }
+
+        @Override void addTime(long tokenizeNanos, long parseNanos) {
+            this.tokenizeNanos += tokenizeNanos;
+            this.parseNanos += parseNanos;
+            global.addTime(tokenizeNanos, parseNanos);
+        }
+    }
+
+    // the counters of every parser in the JVM
+    private static final class Totals extends ParserMetrics {
+        private final LongAdder tokensFed = new LongAdder();
+        private final LongAdder activeStates = new LongAdder();
+        private final LongAccumulator peakActiveStates = new LongAccumulator(Math::max, 0);
+        private final LongAdder branchesExpanded = new LongAdder();
+        private final LongAdder sequencesEntered = new LongAdder();
+        private final LongAdder predicatesTested = new LongAdder();
+        private final LongAdder resultsProduced = new LongAdder();
+        private final LongAdder tokenizeNanos = new LongAdder();
+        private final LongAdder parseNanos = new LongAdder();
+
+        @Override public long getTokensFed() {
+            return tokensFed.sum();
+        }
+
+        @Override long getActiveStates() {
+            return activeStates.sum();
+        }
+
+        @Override public long getPeakActiveStates() {
+            return peakActiveStates.get();
+        }
+
+        @Override public long getBranchesExpanded() {
+            return branchesExpanded.sum();
+        }
+
+        @Override public long getSequencesEntered() {
+            return sequencesEntered.sum();
+        }
+
+        @Override public long getPredicatesTested() {
+            return predicatesTested.sum();
+        }
+
+        @Override public long getResultsProduced() {
+            return resultsProduced.sum();
+        }
+
+        @Override public long getTokenizeNanos() {
+            return tokenizeNanos.sum();
+        }
+
+        @Override public long getParseNanos() {
+            return parseNanos.sum();
+        }
+
+        @Override void add(int tokensFed, int activeStates, int branchesExpanded, int sequencesEntered, int predicatesTested, int resultsProduced) {
+            if (tokensFed > 0) this.tokensFed.add(tokensFed);
+            this.activeStates.add(activeStates);
+            peakActiveStates.accumulate(activeStates);
+            if (branchesExpanded > 0) this.branchesExpanded.add(branchesExpanded);
+            if (sequencesEntered > 0) this.sequencesEntered.add(sequencesEntered);
+            if (predicatesTested > 0) this.predicatesTested.add(predicatesTested);
+            if (resultsProduced > 0) this.resultsProduced.add(resultsProduced);
+        }
+
+        @Override void addTime(long tokenizeNanos, long parseNanos) {
+            this.tokenizeNanos.add(tokenizeNanos);
+            this.parseNanos.add(parseNanos);
+        }
+    }
+
+    private ParserMetrics() {
+        // only Counters and Totals
+    }
+
+    // returns new metrics for a parser, which are summed into the metrics of the JVM
+    static ParserMetrics create() {
+        return new Counters();
+    }
+
+    // returns the metrics of every parser in the JVM
+    public static ParserMetrics getGlobal() {
+        return global;
+    }
+
+    // publishes the metrics of the JVM as the platform MBean named OBJECT_NAME, returning whether they are published
+    // they aren't if another copy of the library has published its metrics already, or publishing them isn't allowed,
+    // in which case they are only available from getGlobal()
+    public static synchronized boolean register() {
+        if (!registered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(global, new ObjectName(OBJECT_NAME));
+                registered = true;
+            }
+            catch (JMException | SecurityException e) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    // the sum of the states active after each token, from which the average is found
+    abstract long getActiveStates();
+
+    @Override public double getAverageActiveStates() {
+        return snapshot().getAverageActiveStates();
+    }
+
+    @Override public String toString() {
+        return snapshot().toString();
+    }
+
+    // adds the work done by a parser for the given number of tokens, after which it had `activeStates` states
+    abstract void add(int tokensFed, int activeStates, int branchesExpanded, int sequencesEntered, int predicatesTested, int resultsProduced);
+
+    abstract void addTime(long tokenizeNanos, long parseNanos);
+}
@@ -0,0 +1,25 @@
+package astify;
+
+// the counters of ParserMetrics, as published through JMX
+public interface ParserMetricsMXBean {
+    // the number of tokens fed to parsers, including EOF tokens
+    long getTokensFed();
+
+    // the most states active after any one token, and the average over every token
+    long getPeakActiveStates();
+    double getAverageActiveStates();
+
+    // the number of branches of branch matchers expanded, not including those pruned for the next token
+    long getBranchesExpanded();
+
+    // the number of sequence nodes created, where a sequence entered again at the same token shares its node
+    long getSequencesEntered();
+
+    long getPredicatesTested();
+
+    long getResultsProduced();
+
+    // the time spent reading tokens from token generators, and feeding them to parsers, by Parser.parse()
+    long getTokenizeNanos();
+    long getParseNanos();
+}
@@ -1,5 +1,6 @@
 package astify;
 
+import astify.token.TokenKinds;
 import astify.token.TokenType;
 
 import java.util.ArrayList;
@@ -24,7 +25,30 @@ public abstract class Pattern {
         return matcher;
     }
 
-    abstract Matcher getMatcher();
+    boolean hasPredicates() {
+        return !predicates.isEmpty();
+    }
+
+    List<MatchPredicate> getPredicates() {
+        return predicates;
+    }
+
+    // compiles a standalone matcher graph for this pattern
+    // prefer CompiledGrammar, which shares the graph between every rule of a PatternBuilder
+    Matcher getMatcher() {
+        Matcher matcher = new CompiledGrammar.Compiler().compile(this);
+        CompiledGrammar.Compiler.computeFirstSets(Collections.singletonList(matcher));
+        return matcher;
+    }
+
+    // returns the matcher for this pattern, registering any node that may be referred to cyclically with the compiler
+    // before compiling its children
+    abstract Matcher compile(CompiledGrammar.Compiler compiler);
+
+    // returns the body of the method generated to match this pattern, which matches from the token at `index`, sets
+    // `capture`, and returns the index of the token after the match or -1 if it fails
+    // predicates are tested by the generator before the body
+    abstract String generate(ParserGenerator generator);
 
     public static final class TokenPattern extends Pattern {
         private final TokenType type;
@@ -35,6 +59,8 @@ public abstract class Pattern {
             assert value != null;
             this.type = type;
             this.value = value;
+            // interned as the pattern is built, so that tokens generated before the grammar is compiled have kinds
+            TokenKinds.intern(type, value);
         }
 
         TokenPattern(TokenType type) {
@@ -43,9 +69,18 @@ public abstract class Pattern {
             this.value = null;
         }
 
-        @Override Matcher getMatcher() {
+        @Override Matcher compile(CompiledGrammar.Compiler compiler) {
             return addPredicates(value == null ? new Matcher.TokenMatcher(type) : new Matcher.TokenMatcher(type, value));
         }
+
+        @Override String generate(ParserGenerator generator) {
+            return "return " + generateToken("index") + ";";
+        }
+
+        // returns an expression matching the token at `index`
+        String generateToken(String index) {
+            return "token(" + index + ", TokenType." + type.name() + ", " + ParserGenerator.literal(value) + ")";
+        }
     }
 
     public static final class NothingPattern extends Pattern {
@@ -53,9 +88,14 @@ public abstract class Pattern {
             // empty
         }
 
-        @Override Matcher getMatcher() {
+        @Override Matcher compile(CompiledGrammar.Compiler compiler) {
             return addPredicates(new Matcher.NothingMatcher());
         }
+
+        @Override String generate(ParserGenerator generator) {
+            return "capture = empty(index);\n" +
+                    "return index;";
+        }
     }
 
     public final static class SequencePattern extends Pattern {
@@ -71,46 +111,174 @@ public abstract class Pattern {
             this.generator = generator;
         }
 
-        @Override Matcher getMatcher() {
+        @Override Matcher compile(CompiledGrammar.Compiler compiler) {
             List<Matcher> matchers = new ArrayList<>();
+            Matcher matcher = compiler.register(this, addPredicates(new Matcher.SequenceMatcher(name, matchers, generator)));
+
+            for (Pattern pattern : patterns) {
+                matchers.add(compiler.compile(pattern));
+            }
+
+            return matcher;
+        }
+
+        @Override String generate(ParserGenerator generator) {
+            StringBuilder body = new StringBuilder();
+            String indent = name == null ? "" : "    ";
+
+            body.append("List<Capture> captures = new ArrayList<>(").append(patterns.size()).append(");\n");
+            body.append("int end = index;\n");
+
+            if (name != null) {
+                body.append("enter(").append(ParserGenerator.literal(name)).append(");\n");
+                body.append("try {\n");
+            }
 
             for (Pattern pattern : patterns) {
-                matchers.add(pattern.getMatcher());
+                body.append(indent).append("if ((end = ").append(generator.call(pattern, "end")).append(") < 0) return -1;\n");
+                body.append(indent).append("captures.add(capture);\n");
+            }
+
+            if (name != null) {
+                body.append("}\n");
+                body.append("finally {\n");
+                body.append("    exit();\n");
+                body.append("}\n");
             }
 
-            return addPredicates(new Matcher.SequenceMatcher(name, matchers, generator));
+            body.append("capture = ").append(generator.generateCapture(this.generator, name, "captures")).append(";\n");
+            body.append("return end;");
+
+            return body.toString();
+        }
+    }
+
+    public static final class RecoverPattern extends Pattern {
+        private final Pattern pattern;
+        private final TokenPattern sync;
+
+        RecoverPattern(Pattern pattern, TokenPattern sync) {
+            assert pattern != null;
+            assert sync != null;
+            this.pattern = pattern;
+            this.sync = sync;
+        }
+
+        @Override Matcher compile(CompiledGrammar.Compiler compiler) {
+            List<Matcher> matchers = new ArrayList<>();
+            Matcher matcher = compiler.register(this, addPredicates(new Matcher.RecoverMatcher(matchers, (Matcher.TokenMatcher) compiler.compile(sync))));
+
+            matchers.add(compiler.compile(pattern));
+
+            return matcher;
+        }
+
+        // generated parsers don't recover, so this matches the pattern alone, as the PackratParser does
+        @Override String generate(ParserGenerator generator) {
+            return "return " + generator.call(pattern, "index") + ";";
         }
     }
 
     public static final class BranchPattern extends Pattern {
         private final List<Pattern> branches;
+        private final boolean ordered;
 
         BranchPattern(List<Pattern> branches) {
+            this(branches, false);
+        }
+
+        BranchPattern(List<Pattern> branches, boolean ordered) {
             assert branches != null;
             this.branches = branches;
+            this.ordered = ordered;
         }
 
-        @Override Matcher getMatcher() {
+        @Override Matcher compile(CompiledGrammar.Compiler compiler) {
             List<Matcher> matchers = new ArrayList<>();
+            Matcher matcher = compiler.register(this, addPredicates(new Matcher.BranchMatcher(matchers, ordered)));
+
+            for (Pattern pattern : branches) {
+                matchers.add(compiler.compile(pattern));
+            }
+
+            return matcher;
+        }
+
+        // an ordered branch returns its first match, otherwise the longest match is taken, as the PackratParser does
+        @Override String generate(ParserGenerator generator) {
+            StringBuilder body = new StringBuilder();
+
+            if (ordered) {
+                body.append("int end;\n");
+
+                for (Pattern pattern : branches) {
+                    body.append("if ((end = ").append(generator.call(pattern, "index")).append(") >= 0) return end;\n");
+                }
+
+                return body.append("return -1;").toString();
+            }
+
+            body.append("int best = -1, end;\n");
+            body.append("Capture bestCapture = null;\n");
 
             for (Pattern pattern : branches) {
-                matchers.add(pattern.getMatcher());
+                body.append("if ((end = ").append(generator.call(pattern, "index")).append(") > best) {\n");
+                body.append("    best = end;\n");
+                body.append("    bestCapture = capture;\n");
+                body.append("}\n");
             }
 
-            return addPredicates(new Matcher.BranchMatcher(matchers));
+            body.append("capture = bestCapture;\n");
+            body.append("return best;");
+
+            return body.toString();
         }
     }
 
     public static final class GeneratorPattern extends Pattern {
-        private final Matcher.GeneratorMatcher.MatcherGenerator generator;
+        interface PatternGenerator {
+            Pattern generate();
+        }
 
-        GeneratorPattern(Matcher.GeneratorMatcher.MatcherGenerator generator) {
+        private final String name;
+        private final PatternGenerator generator;
+
+        GeneratorPattern(String name, PatternGenerator generator) {
+            assert name != null;
             assert generator != null;
+            this.name = name;
             this.generator = generator;
         }
 
-        @Override Matcher getMatcher() {
-            return addPredicates(new Matcher.GeneratorMatcher(generator));
+        // resolves to the shared matcher of the referenced pattern
+        // a reference with predicates of its own is wrapped so that the shared matcher is left untouched
+        @Override Matcher compile(CompiledGrammar.Compiler compiler) {
+            Pattern pattern = generator.generate();
+
+            assert pattern != null : "Lookup of '" + name + "' failed";
+            assert pattern != this : "Cyclic reference to '" + name + "'";
+
+            if (!hasPredicates()) {
+                return compiler.compile(pattern);
+            }
+
+            List<Matcher> matchers = new ArrayList<>();
+            Matcher matcher = compiler.register(this, addPredicates(new Matcher.SequenceMatcher(null, matchers, Capture.nth(0))));
+
+            matchers.add(compiler.compile(pattern));
+
+            return matcher;
+        }
+
+        // returns the pattern referred to
+        Pattern resolve() {
+            Pattern pattern = generator.generate();
+            assert pattern != null : "Lookup of '" + name + "' failed";
+            return pattern;
+        }
+
+        @Override String generate(ParserGenerator generator) {
+            return "return " + generator.call(resolve(), "index") + ";";
         }
     }
 
@@ -129,11 +297,23 @@ public abstract class Pattern {
             this.generator = generator;
         }
 
-        @Override Matcher getMatcher() {
-            return addPredicates(new Matcher.BranchMatcher(Arrays.asList(
-                pattern.getMatcher(),
-                generator == null ? new Matcher.NothingMatcher() : new Matcher.SequenceMatcher(null, Collections.singletonList(new Matcher.NothingMatcher()), generator)
-            )));
+        @Override Matcher compile(CompiledGrammar.Compiler compiler) {
+            List<Matcher> matchers = new ArrayList<>();
+            Matcher matcher = compiler.register(this, addPredicates(new Matcher.BranchMatcher(matchers)));
+
+            matchers.add(compiler.compile(pattern));
+            matchers.add(generator == null ? new Matcher.NothingMatcher() : new Matcher.SequenceMatcher(null, Collections.singletonList(new Matcher.NothingMatcher()), generator));
+
+            return matcher;
+        }
+
+        @Override String generate(ParserGenerator generator) {
+            String empty = this.generator == null ? "empty(index)" : generator.generateCapture(this.generator, null, "Collections.singletonList(empty(index))");
+
+            return "int end;\n" +
+                    "if ((end = " + generator.call(pattern, "index") + ") >= 0) return end;\n" +
+                    "capture = " + empty + ";\n" +
+                    "return index;";
         }
     }
 
@@ -163,19 +343,33 @@ public abstract class Pattern {
             return generateFromList(captures.get(0), captures.get(1));
         }
 
-        Matcher generateMatcher() {
-            return new OptionalPattern(
-                    new Pattern.SequencePattern(null,
-                            Arrays.asList(pattern, new GeneratorPattern(this::generateMatcher)),
-                            ListPattern::generateFromList
-                    ),
+        // compiles to a branch which refers back to itself after each element:
+        // list -> (pattern list | nothing)
+        // predicates only apply to the outermost branch, so a separate node is used for the recursion when there are any
+        @Override Matcher compile(CompiledGrammar.Compiler compiler) {
+            List<Matcher> branches = new ArrayList<>();
+            Matcher.BranchMatcher list = new Matcher.BranchMatcher(branches);
+            Matcher matcher = compiler.register(this, hasPredicates() ? addPredicates(new Matcher.BranchMatcher(branches)) : list);
+
+            branches.add(new Matcher.SequenceMatcher(null, Arrays.asList(compiler.compile(pattern), list), ListPattern::generateFromList));
+            branches.add(new Matcher.SequenceMatcher(null,
+                    Collections.singletonList(new Matcher.NothingMatcher()),
                     (captures) -> Capture.ListCapture.createEmpty(captures.get(0).spanningPosition)
-            ).getMatcher();
+            ));
+
+            return matcher;
         }
 
-        @Override public Matcher getMatcher() {
-            Matcher matcher = pattern.getMatcher();
-            return addPredicates(generateMatcher());
+        // a loop which stops at the first element which fails or matches nothing
+        @Override String generate(ParserGenerator generator) {
+            return "List<Capture> captures = new ArrayList<>();\n" +
+                    "int end;\n" +
+                    "while ((end = " + generator.call(pattern, "index") + ") > index) {\n" +
+                    "    captures.add(capture);\n" +
+                    "    index = end;\n" +
+                    "}\n" +
+                    "capture = list(captures, index);\n" +
+                    "return index;";
         }
     }
 
@@ -189,11 +383,27 @@ public abstract class Pattern {
             this.delim = delim;
         }
 
-        @Override public Matcher getMatcher() {
-            return addPredicates(new Matcher.SequenceMatcher(null, Arrays.asList(
-                    pattern.getMatcher(),
-                    new ListPattern(new SequencePattern(null, Arrays.asList(delim, pattern), Capture.nth(1))).getMatcher()
-            ), ListPattern::generateFromList));
+        @Override Matcher compile(CompiledGrammar.Compiler compiler) {
+            List<Matcher> matchers = new ArrayList<>();
+            Matcher matcher = compiler.register(this, addPredicates(new Matcher.SequenceMatcher(null, matchers, ListPattern::generateFromList)));
+
+            matchers.add(compiler.compile(pattern));
+            matchers.add(compiler.compile(new ListPattern(new SequencePattern(null, Arrays.asList(delim, pattern), Capture.nth(1)))));
+
+            return matcher;
+        }
+
+        @Override String generate(ParserGenerator generator) {
+            return "List<Capture> captures = new ArrayList<>();\n" +
+                    "int end, next;\n" +
+                    "if ((index = " + generator.call(pattern, "index") + ") < 0) return -1;\n" +
+                    "captures.add(capture);\n" +
+                    "while ((end = " + generator.call(delim, "index") + ") >= 0 && (next = " + generator.call(pattern, "end") + ") > index) {\n" +
+                    "    captures.add(capture);\n" +
+                    "    index = next;\n" +
+                    "}\n" +
+                    "capture = list(captures, index);\n" +
+                    "return index;";
         }
     }
 }
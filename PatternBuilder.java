@@ -9,6 +9,20 @@ public class PatternBuilder {
     private final Map<String, Pattern> environment;
     private final Set<String> keywords;
     private final Set<String> operators;
+    private final Set<String> symbols;
+    // the grammar last compiled, which is compiled again once anything is defined or a keyword or symbol is added
+    private CompiledGrammar compiled = null;
+
+    // the capture generator of sequences given none, which creates a list capture containing all sub-captures
+    private static final CaptureGenerator LIST = new ParserGenerator.SourceGenerator() {
+        @Override public Capture generate(List<Capture> captures) {
+            return Capture.ListCapture.createFrom(captures);
+        }
+
+        @Override public String write(String captures) {
+            return "Capture.ListCapture.createFrom(" + captures + ")";
+        }
+    };
 
     protected TokenType Word = TokenType.Word;
     protected TokenType String = TokenType.String;
@@ -25,6 +39,7 @@ public class PatternBuilder {
         environment = new HashMap<>();
         keywords = new HashSet<>();
         operators = new HashSet<>();
+        symbols = new HashSet<>();
     }
 
     public Set<String> getKeywords() {
@@ -33,6 +48,24 @@ public class PatternBuilder {
 
     public Set<String> getOperators() { return new HashSet<>(operators); }
 
+    // returns every symbol matched by a pattern built so far, including operators, which a DefaultTokenGenerator needs
+    // to generate the symbols of more than one character as single tokens
+    public Set<String> getSymbols() {
+        return new HashSet<>(symbols);
+    }
+
+    // compiles every pattern defined so far into a single shared matcher graph
+    // the grammar is only compiled again once a pattern has been defined since, so this is cheap to call before each
+    // parse, but predicates added to patterns already compiled aren't seen until then
+    public synchronized CompiledGrammar compile() {
+        if (compiled == null) compiled = new CompiledGrammar(this);
+        return compiled;
+    }
+
+    Map<String, Pattern> getEnvironment() {
+        return new HashMap<>(environment);
+    }
+
     // a token with the given type
     public Pattern.TokenPattern token(TokenType type) {
         assert type != null;
@@ -43,6 +76,7 @@ public class PatternBuilder {
     public Pattern.TokenPattern token(TokenType type, String value) {
         assert type != null;
         assert value != null;
+        if (type == TokenType.Symbol && symbols.add(value)) invalidate();
         return new Pattern.TokenPattern(type, value);
     }
 
@@ -64,16 +98,21 @@ public class PatternBuilder {
     // a token with type Keyword and the given word value
     public astify.Pattern.TokenPattern keyword(String word) {
         assert word != null;
-        keywords.add(word);
+        if (keywords.add(word)) invalidate();
         return new Pattern.TokenPattern(TokenType.Keyword, word);
     }
 
-    // a sequence of consecutive tokens with the type Symbol matching the symbol given
+    // a token with the type Symbol matching the symbol given
+    // a DefaultTokenGenerator given getSymbols() generates the longest symbol at each position as a single token, but
+    // one given no symbols generates a token for each character, so a symbol of more than one character also matches
+    // a sequence of consecutive tokens with the type Symbol, each matching one of its characters
+    // either way the symbol is captured as a single token
     public Pattern symbol(String symbol) {
         assert symbol != null;
+        assert symbol.length() > 0;
 
         if (symbol.length() == 1) {
-            return new Pattern.TokenPattern(TokenType.Symbol, symbol);
+            return token(TokenType.Symbol, symbol);
         }
 
         List<Pattern> patterns = new ArrayList<>();
@@ -84,11 +123,15 @@ public class PatternBuilder {
             patterns.add(symbol(symbol.substring(i, i + 1)).addPredicate(MatchPredicate.noSpace()));
         }
 
-        return new Pattern.SequencePattern(null, patterns, (captures) -> new Capture.TokenCapture(new Token(
-                Symbol,
-                symbol,
-                captures.get(0).spanningPosition.to(captures.get(captures.size() - 1).spanningPosition)
-        )));
+        return one_of(token(TokenType.Symbol, symbol), new Pattern.SequencePattern(null, patterns, new ParserGenerator.SourceGenerator() {
+            @Override public Capture generate(List<Capture> captures) {
+                return new Capture.TokenCapture(new Token(Symbol, symbol, captures.get(0).spanningPosition.to(captures.get(captures.size() - 1).spanningPosition)));
+            }
+
+            @Override public String write(String captures) {
+                return "new Capture.TokenCapture(new Token(TokenType.Symbol, " + ParserGenerator.literal(symbol) + ", " + captures + ".get(0).spanningPosition.to(" + captures + ".get(" + (symbol.length() - 1) + ").spanningPosition)))";
+            }
+        }));
     }
 
     public Pattern operator(String symbol) {
@@ -155,18 +198,20 @@ public class PatternBuilder {
     // sequence(CaptureGenerator, Pattern...) but creates a list capture containing all sub-captures
     public Pattern.SequencePattern sequence(Pattern... parts) {
         assert parts.length > 0;
-        return sequence(Capture.ListCapture::createFrom, parts);
+        return sequence(LIST, parts);
     }
 
     // sequence(Pattern...) but defines the resulting pattern using the given name
     public Pattern.SequencePattern sequence(String name, Pattern... parts) {
         assert name != null;
         assert parts.length > 0;
-        return sequence(name, Capture.ListCapture::createFrom, parts);
+        return sequence(name, LIST, parts);
     }
 
     // matches any number of the given patterns
     // note that this can lead to syntax ambiguity, resulting in many distinct matches for the same token stream
+    // the PackratParser and generated parsers take only the longest match and never try a shorter one, so they reject
+    // some inputs the Parser accepts, e.g. `sequence(one_of(a, sequence(a, b)), b)` on "a b"
     public Pattern one_of(Pattern... options) {
         assert options.length > 0;
         if (options.length == 1) return options[0];
@@ -180,10 +225,38 @@ public class PatternBuilder {
         return define(name, one_of(options));
     }
 
+    // matches the first of the given patterns which matches, trying them in the order given
+    // this only affects the PackratParser and generated parsers, which otherwise take the longest match of a one_of();
+    // the breadth-first Parser treats it the same as one_of(), though ParseMode.FIRST prefers earlier branches of both
+    // either way a branch is never tried again once a later pattern fails, so PackratParser and generated parsers can
+    // reject inputs the Parser accepts, e.g. `sequence(first_of(sequence(a, b), a), b)` on "a b"
+    public Pattern first_of(Pattern... options) {
+        assert options.length > 0;
+        if (options.length == 1) return options[0];
+        return new Pattern.BranchPattern(Arrays.asList(options), true);
+    }
+
+    // first_of(Pattern...) but defines the resulting pattern using the given name
+    public Pattern.SequencePattern first_of(String name, Pattern... options) {
+        assert name != null;
+        assert options.length > 0;
+        return define(name, first_of(options));
+    }
+
+    // matches the pattern given, but if the Parser fails within it, every token up to and including the next one
+    // matching `sync` is skipped and a Capture.ErrorCapture is matched in its place, so that parsing carries on after
+    // it and reports every error in one pass
+    // for example `list(recover(ref("statement"), symbol(";")))`
+    public Pattern.RecoverPattern recover(Pattern pattern, Pattern sync) {
+        assert pattern != null;
+        assert sync instanceof Pattern.TokenPattern && !sync.hasPredicates() : "Recovery must sync on a single token";
+        return new Pattern.RecoverPattern(pattern, (Pattern.TokenPattern) sync);
+    }
+
     // matches the pattern defined using the given name
     public Pattern.GeneratorPattern ref(String name) {
         assert name != null;
-        return new Pattern.GeneratorPattern(() -> lookup(name).getMatcher());
+        return new Pattern.GeneratorPattern(name, () -> lookup(name));
     }
 
     // matches the end of the file
@@ -204,6 +277,7 @@ public class PatternBuilder {
         assert !environment.containsKey(name) : "Redefinition of " + name;
 
         environment.put(name, pattern);
+        invalidate();
 
         return pattern;
     }
@@ -221,6 +295,10 @@ public class PatternBuilder {
         }
     }
 
+    private synchronized void invalidate() {
+        compiled = null;
+    }
+
     // looks up a pattern with the given name
     public Pattern lookup(String name) {
         assert name != null;
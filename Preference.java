@@ -0,0 +1,143 @@
+package astify;
+
+// the order of preference of ParseMode.FIRST, where of two derivations, the one which took the earlier branch at the
+// first branch matcher they differ at is preferred, visiting branch matchers in the order a backtracking parser would
+// (those within a sequence before those after it)
+// each state records the choices it made within its node: the index of each branch it took, and for each sequence it
+// completed, the choices made within that sequence (a ConsList, or null if it made none)
+// the choices made before a node are those of the parent which entered it first, which is its most preferred parent,
+// so two states are compared from the nearest node both are within, by their choices there and then by those within
+// the sequences they entered from it
+final class Preference {
+    private Preference() {}
+
+    // returns a negative number if the first state is preferred to the second, a positive number if the second is
+    // preferred to the first, and zero if neither is
+    static int compare(SequenceNode a, ConsList<Object> choicesA, SequenceNode b, ConsList<Object> choicesB) {
+        SequenceNode x = a, y = b;
+
+        while (x.depth > y.depth) x = x.getFirstParent();
+        while (y.depth > x.depth) y = y.getFirstParent();
+
+        while (x != y) {
+            x = x.getFirstParent();
+            y = y.getFirstParent();
+
+            // states of different parses
+            if (x == null || y == null) return 0;
+        }
+
+        return compareWithin(x, a, choicesA, b, choicesB);
+    }
+
+    // compares two states within the node `node`
+    private static int compareWithin(SequenceNode node, SequenceNode a, ConsList<Object> choicesA, SequenceNode b, ConsList<Object> choicesB) {
+        SequenceNode childA = getChild(a, node), childB = getChild(b, node);
+        ConsList<Object> listA = childA == null ? choicesA : childA.getParent(0).choices;
+        ConsList<Object> listB = childB == null ? choicesB : childB.getParent(0).choices;
+        int sizeA = ConsList.size(listA), sizeB = ConsList.size(listB);
+        int result = compareChoices(listA, listB);
+
+        if (result != 0) return result;
+
+        // a state which made fewer choices is either yet to make the next choice of the other, which it is expanded
+        // before, or is within the sequence the other completed there
+        if (sizeA < sizeB) {
+            return childA == null ? -1 : compareCompletion(childA, a, choicesA, get(listB, sizeA));
+        }
+        else if (sizeA > sizeB) {
+            return childB == null ? 1 : -compareCompletion(childB, b, choicesB, get(listA, sizeB));
+        }
+        else if (childA != null && childB != null) {
+            // different nodes of the same sequence, separated by pending predicates, are neither preferred
+            return childA == childB ? compareWithin(childA, a, choicesA, b, choicesB) : 0;
+        }
+
+        // a state is expanded before the states within the sequence it enters
+        return childA == childB ? 0 : childA == null ? -1 : 1;
+    }
+
+    // compares a state within the node `node` to a completion of that node with the given choices
+    @SuppressWarnings("unchecked")
+    private static int compareCompletion(SequenceNode node, SequenceNode a, ConsList<Object> choicesA, Object completion) {
+        SequenceNode child = getChild(a, node);
+        ConsList<Object> listA = child == null ? choicesA : child.getParent(0).choices;
+        ConsList<Object> listB;
+        int sizeA, sizeB, result;
+
+        if (completion instanceof Integer) return 0;
+
+        listB = (ConsList<Object>) completion;
+        sizeA = ConsList.size(listA);
+        sizeB = ConsList.size(listB);
+        result = compareChoices(listA, listB);
+
+        if (result != 0) return result;
+
+        if (sizeA < sizeB) {
+            return child == null ? -1 : compareCompletion(child, a, choicesA, get(listB, sizeA));
+        }
+
+        return child == null && sizeA == sizeB ? -1 : 0;
+    }
+
+    // compares two choices made at the same point, which are either both branch indices or both completions of the
+    // same sequence
+    @SuppressWarnings("unchecked")
+    private static int compareChoice(Object a, Object b) {
+        if (a == b) return 0;
+        if (a instanceof Integer && b instanceof Integer) return Integer.compare((Integer) a, (Integer) b);
+        if (a instanceof Integer || b instanceof Integer) return 0;
+
+        ConsList<Object> listA = (ConsList<Object>) a, listB = (ConsList<Object>) b;
+        int result = compareChoices(listA, listB);
+
+        return result != 0 ? result : Integer.compare(ConsList.size(listA), ConsList.size(listB));
+    }
+
+    // compares the choices two lists made at the same indices, in the order they were made, ignoring those the longer
+    // list made after the end of the shorter one
+    // lists made by states of the same parse usually share the choices they made before they differ, so only those
+    // after the last shared element are walked
+    private static int compareChoices(ConsList<Object> a, ConsList<Object> b) {
+        int size = Math.min(ConsList.size(a), ConsList.size(b));
+        int first = size;
+
+        a = take(a, size);
+        b = take(b, size);
+
+        // finds the first index where the lists hold different choices
+        for (ConsList<Object> x = a, y = b; x != y; x = x.getPrevious(), y = y.getPrevious()) {
+            --size;
+            if (x.getValue() != y.getValue()) first = size;
+        }
+
+        for (; first < ConsList.size(a); ++first) {
+            int result = compareChoice(get(a, first), get(b, first));
+            if (result != 0) return result;
+        }
+
+        return 0;
+    }
+
+    // returns the first `size` elements of the list
+    private static ConsList<Object> take(ConsList<Object> list, int size) {
+        while (ConsList.size(list) > size) list = list.getPrevious();
+        return list;
+    }
+
+    // returns the element at the given index of the list
+    private static Object get(ConsList<Object> list, int index) {
+        return take(list, index + 1).getValue();
+    }
+
+    // returns the node within `node` whose first parent is `node` on the way from `state` to it, or null if `state`
+    // is `node`
+    private static SequenceNode getChild(SequenceNode state, SequenceNode node) {
+        if (state == node) return null;
+
+        while (state.depth > node.depth + 1) state = state.getFirstParent();
+
+        return state;
+    }
+}
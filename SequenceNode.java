@@ -0,0 +1,111 @@
+package astify;
+
+import astify.core.Position;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// a node of the parser's graph structured stack: a sequence matcher entered at a given token
+// every state which enters the same sequence at the same token (with no pending predicates) shares one node, so the
+// sequence is only parsed once, and each completion of it is passed on to all of its parents
+final class SequenceNode {
+    // a parent waiting on this node, along with the captures it had made when it entered this node
+    static final class Edge {
+        final SequenceNode parent;
+        final ConsList<Capture> captures;
+        // the choices the parent had made when it entered this node, in ParseMode.FIRST
+        final ConsList<Object> choices;
+        // whether the parent entered this node again through left recursion
+        final boolean recursive;
+
+        private Edge(SequenceNode parent, ConsList<Capture> captures, ConsList<Object> choices, boolean recursive) {
+            this.parent = parent;
+            this.captures = captures;
+            this.choices = choices;
+            this.recursive = recursive;
+        }
+    }
+
+    // a completion of this node without consuming any token
+    // these are kept so that parents which enter the node later at the same token still receive them
+    static final class Completion {
+        final Capture result;
+        final ConsList<MatchPredicate> predicates;
+        final ConsList<Object> choices;
+
+        private Completion(Capture result, ConsList<MatchPredicate> predicates, ConsList<Object> choices) {
+            this.result = result;
+            this.predicates = predicates;
+            this.choices = choices;
+        }
+    }
+
+    final Matcher.SequenceMatcher matcher;
+    final int start;
+    // the number of first parents between this node and the root
+    int depth = 0;
+
+    private final List<Edge> parents = new ArrayList<>(1);
+    private List<Completion> completions = null;
+
+    // the forest symbol for this node's completion at the parser step `symbolStep`, shared by every way of completing
+    // it there
+    // steps are used rather than token indices as a restored parser sees the same token indices again
+    ParseForest.Symbol symbol = null;
+    long symbolStep = -1;
+    // the last step this node completed at without pending predicates, after which ParseMode.FIRST and ParseMode.ANY
+    // drop any other completion at that step
+    long completionStep = -1;
+    // the position of the token a recovery node starts at, which its error capture spans from, or null for other nodes
+    Position startPosition = null;
+
+    SequenceNode(Matcher.SequenceMatcher matcher, int start) {
+        this.matcher = matcher;
+        this.start = start;
+    }
+
+    boolean isRoot() {
+        return parents.isEmpty();
+    }
+
+    String getMatcherName() {
+        return matcher.name;
+    }
+
+    Edge addParent(SequenceNode parent, ConsList<Capture> captures, ConsList<Object> choices) {
+        return addParent(parent, captures, choices, false);
+    }
+
+    Edge addParent(SequenceNode parent, ConsList<Capture> captures, ConsList<Object> choices, boolean recursive) {
+        Edge edge = new Edge(parent, captures, choices, recursive);
+        if (parents.isEmpty()) depth = parent.depth + 1;
+        parents.add(edge);
+        return edge;
+    }
+
+    int getParentCount() {
+        return parents.size();
+    }
+
+    Edge getParent(int i) {
+        return parents.get(i);
+    }
+
+    // the parent first used to enter this node, used to describe where a failure happened
+    SequenceNode getFirstParent() {
+        return parents.isEmpty() ? null : parents.get(0).parent;
+    }
+
+    void addCompletion(Capture result, ConsList<MatchPredicate> predicates, ConsList<Object> choices) {
+        if (completions == null) completions = new ArrayList<>(1);
+        completions.add(new Completion(result, predicates, choices));
+    }
+
+    int getCompletionCount() {
+        return completions == null ? 0 : completions.size();
+    }
+
+    Completion getCompletion(int i) {
+        return completions.get(i);
+    }
+}
@@ -0,0 +1,191 @@
+package astify;
+
+import java.util.Arrays;
+
+// a list of parser states stored as parallel arrays rather than as an object per state
+// each state is a position in a sequence node, along with the captures made so far in that sequence and any
+// predicates to test against the next token, and `matcher` is the matcher to expand next, or null if the state should
+// move on to the next matcher in its sequence
+// in ParseMode.FIRST, each state also has the choices it made within its node (see Preference), and the pending states
+// are kept as a priority queue ordered by them
+// pools are reused between tokens, so once they have grown large enough adding states allocates nothing
+// pools can share their arrays with other pools (copy on write), in which case they are copied before being changed
+final class StatePool {
+    private Matcher[] matchers;
+    private SequenceNode[] nodes;
+    private ConsList<Capture>[] captures;
+    private ConsList<MatchPredicate>[] predicates;
+    private ConsList<Object>[] choices;
+    private int size = 0;
+    private boolean shared = false;
+
+    StatePool() {
+        allocate(16);
+    }
+
+    private StatePool(StatePool pool) {
+        matchers = pool.matchers;
+        nodes = pool.nodes;
+        captures = pool.captures;
+        predicates = pool.predicates;
+        choices = pool.choices;
+        size = pool.size;
+        shared = true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    Matcher getMatcher(int i) {
+        return matchers[i];
+    }
+
+    SequenceNode getNode(int i) {
+        return nodes[i];
+    }
+
+    ConsList<Capture> getCaptures(int i) {
+        return captures[i];
+    }
+
+    ConsList<MatchPredicate> getPredicates(int i) {
+        return predicates[i];
+    }
+
+    ConsList<Object> getChoices(int i) {
+        return choices[i];
+    }
+
+    void add(Matcher matcher, SequenceNode node, ConsList<Capture> captures, ConsList<MatchPredicate> predicates, ConsList<Object> choices) {
+        if (size == matchers.length || shared) grow();
+
+        this.matchers[size] = matcher;
+        this.nodes[size] = node;
+        this.captures[size] = captures;
+        this.predicates[size] = predicates;
+        this.choices[size] = choices;
+        ++size;
+    }
+
+    // adds the state at index `i` of another pool
+    void add(StatePool pool, int i) {
+        add(pool.matchers[i], pool.nodes[i], pool.captures[i], pool.predicates[i], pool.choices[i]);
+    }
+
+    // adds a state to a pool used as a priority queue, which is a binary heap with the most preferred state first
+    void addInOrder(Matcher matcher, SequenceNode node, ConsList<Capture> captures, ConsList<MatchPredicate> predicates, ConsList<Object> choices) {
+        add(matcher, node, captures, predicates, choices);
+
+        for (int i = size - 1; i > 0 && isPreferred(i, (i - 1) / 2); i = (i - 1) / 2) {
+            swap(i, (i - 1) / 2);
+        }
+    }
+
+    // moves the most preferred state of a pool used as a priority queue to its end, where it can be read and then
+    // removed with removeLast()
+    void movePreferredLast() {
+        int end = size - 1;
+
+        swap(0, end);
+
+        for (int i = 0, child; (child = 2 * i + 1) < end; i = child) {
+            if (child + 1 < end && isPreferred(child + 1, child)) ++child;
+            if (!isPreferred(child, i)) break;
+            swap(i, child);
+        }
+    }
+
+    // adds every state of another pool in reverse order, so that when this pool is used as a stack they are popped in
+    // their original order
+    void addReversed(StatePool pool) {
+        for (int i = pool.size - 1; i >= 0; --i) {
+            add(pool, i);
+        }
+    }
+
+    // returns a new pool holding the same states, which shares this pool's arrays until either pool is changed
+    StatePool share() {
+        shared = true;
+        return new StatePool(this);
+    }
+
+    // removes the last state, whose fields should have been read first
+    void removeLast() {
+        if (shared) grow();
+        --size;
+        matchers[size] = null;
+        nodes[size] = null;
+        captures[size] = null;
+        predicates[size] = null;
+        choices[size] = null;
+    }
+
+    // removes every state, releasing the references held so they can be collected
+    void clear() {
+        if (shared) {
+            // the arrays are left as they are for the pools sharing them
+            allocate(16);
+            size = 0;
+            return;
+        }
+
+        Arrays.fill(matchers, 0, size, null);
+        Arrays.fill(nodes, 0, size, null);
+        Arrays.fill(captures, 0, size, null);
+        Arrays.fill(predicates, 0, size, null);
+        Arrays.fill(choices, 0, size, null);
+        size = 0;
+    }
+
+    // copies the arrays, doubling their capacity if they are full
+    private void grow() {
+        int capacity = size == matchers.length ? matchers.length * 2 : matchers.length;
+
+        matchers = Arrays.copyOf(matchers, capacity);
+        nodes = Arrays.copyOf(nodes, capacity);
+        captures = Arrays.copyOf(captures, capacity);
+        predicates = Arrays.copyOf(predicates, capacity);
+        choices = Arrays.copyOf(choices, capacity);
+        shared = false;
+    }
+
+    private boolean isPreferred(int i, int j) {
+        return Preference.compare(nodes[i], choices[i], nodes[j], choices[j]) < 0;
+    }
+
+    private void swap(int i, int j) {
+        Matcher matcher = matchers[i];
+        SequenceNode node = nodes[i];
+        ConsList<Capture> captures = this.captures[i];
+        ConsList<MatchPredicate> predicates = this.predicates[i];
+        ConsList<Object> choices = this.choices[i];
+
+        assert !shared;
+
+        matchers[i] = matchers[j];
+        nodes[i] = nodes[j];
+        this.captures[i] = this.captures[j];
+        this.predicates[i] = this.predicates[j];
+        this.choices[i] = this.choices[j];
+        matchers[j] = matcher;
+        nodes[j] = node;
+        this.captures[j] = captures;
+        this.predicates[j] = predicates;
+        this.choices[j] = choices;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void allocate(int capacity) {
+        matchers = new Matcher[capacity];
+        nodes = new SequenceNode[capacity];
+        captures = new ConsList[capacity];
+        predicates = new ConsList[capacity];
+        choices = new ConsList[capacity];
+        shared = false;
+    }
+}
@@ -0,0 +1,86 @@
+package astify;
+
+import astify.token.Token;
+import astify.token.TokenKinds;
+import astify.token.TokenType;
+
+import java.util.Arrays;
+
+// the states of a pool waiting on token matchers, grouped by the token each expects, so that the states which match a
+// token are found without testing every state against it
+// a state expecting a value is grouped by the kind of that value, and a state expecting any value of a type is grouped
+// by the type, and each group is a linked list of the indices of its states in the order they were added
+// groups are only valid for the generation they were added in, so clearing the index allocates and fills nothing
+final class TokenIndex {
+    private static final int TYPES = TokenType.values().length;
+
+    // the first and last state of each group, where the group of a type is its ordinal and the group of a kind is
+    // TYPES plus the kind, and the generation each group was last added to
+    private int[] first = new int[TYPES + 64];
+    private int[] last = new int[TYPES + 64];
+    private int[] generations = new int[TYPES + 64];
+    // the state after each state in its group, or -1 if it is the last
+    private int[] next = new int[16];
+    private int generation = 1;
+
+    // adds the state at index `state` of the pool, which must be one more than the last state added since clear()
+    void add(Matcher.TokenMatcher matcher, int state) {
+        int group = matcher.getKind() == TokenKinds.NONE ? matcher.getType().ordinal() : TYPES + matcher.getKind();
+
+        if (group >= first.length) {
+            int capacity = Math.max(group + 1, first.length * 2);
+            first = Arrays.copyOf(first, capacity);
+            last = Arrays.copyOf(last, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+        }
+
+        if (state == next.length) next = Arrays.copyOf(next, next.length * 2);
+
+        next[state] = -1;
+
+        if (generations[group] != generation) {
+            generations[group] = generation;
+            first[group] = state;
+        }
+        else {
+            next[last[group]] = state;
+        }
+
+        last[group] = state;
+    }
+
+    // returns the first state expecting any value of the token's type, or -1 if there are none
+    int getFirstOfType(Token token) {
+        return getFirst(token.getType().ordinal());
+    }
+
+    // returns the first state expecting the token's value, or -1 if there are none
+    // a token without a kind may have been created before its value was interned, so its kind is looked up again,
+    // unless no value of its type has been interned at all
+    int getFirstOfKind(Token token) {
+        int kind = token.getKind();
+
+        if (kind == TokenKinds.NONE && TokenKinds.hasValues(token.getType())) {
+            kind = TokenKinds.lookup(token.getType(), token.getValue());
+        }
+
+        return kind == TokenKinds.NONE ? -1 : getFirst(TYPES + kind);
+    }
+
+    // returns the state after `state` in its group, or -1 if it is the last
+    int getNext(int state) {
+        return next[state];
+    }
+
+    void clear() {
+        if (++generation == 0) {
+            // every group would be valid again once the generation wraps around
+            Arrays.fill(generations, 0);
+            generation = 1;
+        }
+    }
+
+    private int getFirst(int group) {
+        return group < first.length && generations[group] == generation ? first[group] : -1;
+    }
+}
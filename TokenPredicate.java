@@ -0,0 +1,93 @@
+package astify;
+
+import astify.token.Token;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// a predicate which only looks at the next token
+// the Parser tests these before expanding a branch, so that a branch they rule out is pruned along with every state
+// it would have created, rather than failing once it reaches the next token
+abstract class TokenPredicate implements MatchPredicate {
+    abstract boolean test(Token token);
+
+    // compiles anything the predicate matches the token against, which is done once as the grammar using it is built
+    void compile() {
+        // nothing to compile
+    }
+
+    @Override public final boolean test(State state) {
+        return test(state.nextToken);
+    }
+
+    // returns whether every predicate of the list is a TokenPredicate
+    static boolean all(List<MatchPredicate> predicates) {
+        for (MatchPredicate predicate : predicates) {
+            if (!(predicate instanceof TokenPredicate)) return false;
+        }
+
+        return true;
+    }
+
+    // nextCanStart() and nextCannotStart(), which compile the pattern once, when the first grammar using them is built
+    static final class Lookahead extends TokenPredicate {
+        private final Pattern pattern;
+        private final boolean followed;
+        private volatile Matcher matcher;
+        private boolean compiling;
+
+        Lookahead(Pattern pattern, boolean followed) {
+            this.pattern = pattern;
+            this.followed = followed;
+        }
+
+        @Override boolean test(Token token) {
+            if (matcher == null) compile();
+            return matcher.canStartWith(token) == followed;
+        }
+
+        // the pattern may use this predicate itself, in which case it is found again while it is being compiled
+        @Override synchronized void compile() {
+            if (matcher != null || compiling) return;
+
+            Matcher compiled = new CompiledGrammar.Compiler().compile(pattern);
+
+            compiling = true;
+            CompiledGrammar.Compiler.computeFirstSets(Collections.singletonList(compiled));
+            compiling = false;
+
+            // the first set of a pattern of several tokens says nothing of whether the tokens after the next match it
+            assert isSingleToken(compiled, new HashSet<>()) : "Lookahead pattern must match exactly one token";
+
+            matcher = compiled;
+        }
+
+        // returns whether the matcher always matches exactly one token, where a matcher seen again through recursion
+        // adds nothing which isn't already being checked
+        private static boolean isSingleToken(Matcher matcher, Set<Matcher> visited) {
+            if (!visited.add(matcher)) return true;
+
+            if (matcher instanceof Matcher.TokenMatcher) {
+                return true;
+            }
+            else if (matcher instanceof Matcher.BranchMatcher) {
+                for (Matcher branch : matcher.getChildren()) {
+                    if (!isSingleToken(branch, visited)) return false;
+                }
+
+                return true;
+            }
+            else if (matcher instanceof Matcher.SequenceMatcher) {
+                return matcher.getChildren().size() == 1 && isSingleToken(matcher.getChildren().get(0), visited);
+            }
+
+            return false;
+        }
+
+        @Override public ParserFailure getError(State state) {
+            return new ParserFailure.PredicateFailure(state.sources, "Unexpected " + state.nextToken.toString());
+        }
+    }
+}
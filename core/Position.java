@@ -20,25 +20,57 @@ public final class Position {
         return b.toString();
     }
 
+    // characters past the end of the line, such as those of positions made past the end of the content, count as one each
     private static String rep(String s, int n, String src) {
-        return rep(s, src.substring(0, n).replace("\t", "    ").length());
+        int length = Math.min(n, src.length());
+        return rep(s, src.substring(0, length).replace("\t", "    ").length() + n - length);
     }
 
     private static String spaces(int characters, String line) {
         return rep(" ", characters, line);
     }
 
-    public final Source source;
-    public final int line1, line2;
-    public final int char1, char2;
+    static long pack(int start, int end) {
+        assert 0 <= start && start <= end;
+        return (long) start << 32 | end & 0xFFFFFFFFL;
+    }
 
-    public Position(Source source, int line1, int line2, int char1, int char2) {
+    private static long packClamped(int start, int end) {
+        start = Math.max(start, 0);
+        return pack(start, Math.max(end, start));
+    }
+
+    public final Source source;
+    // the offsets into the source's content of the first and last characters spanned, packed as the high and low halves
+    // the line and character of each are only worked out when they're asked for, from the lines of the source
+    // the offsets are moved past any edits made to the source since they were last looked at, so a position keeps
+    // spanning the same characters as the content around them changes (see Source.EditableSource.replace())
+    private long span;
+    // the number of edits made to the source when the offsets were last moved
+    private int edits;
+
+    private Position(Source source, long span) {
         assert source != null;
         this.source = source;
-        this.line1 = line1;
-        this.line2 = line2;
-        this.char1 = char1;
-        this.char2 = char2;
+        this.span = span;
+        this.edits = source.edits;
+    }
+
+    private long getSpan() {
+        if (edits != source.edits) {
+            span = source.moveSpan(span, edits);
+            edits = source.edits;
+        }
+
+        return span;
+    }
+
+    // lines and characters count from 1, and are found as offsets from the lines of the source's content, so a character
+    // past the end of its line is a character of the lines after it
+    // any line and character is accepted: lines past the last start at the end of the content, and offsets before the
+    // start of the content, or an end before the start, are moved up to the start
+    public Position(Source source, int line1, int line2, int char1, int char2) {
+        this(source, packClamped(source.getLineOffset(line1) + char1 - 1, source.getLineOffset(line2) + char2 - 1));
     }
 
     public Position(Source source, int line, int char1, int char2) {
@@ -49,26 +81,87 @@ public final class Position {
         this(source, line, line, c, c);
     }
 
+    // returns the position spanning the characters from offset `start` up to and including offset `end`
+    public static Position fromOffsets(Source source, int start, int end) {
+        return new Position(source, pack(start, end));
+    }
+
+    // returns the position of the character at the offset
+    public static Position fromOffset(Source source, int offset) {
+        return new Position(source, pack(offset, offset));
+    }
+
+    // returns the offset into the source's content of the first character of the position
+    public int getStart() {
+        return (int) (getSpan() >>> 32);
+    }
+
+    // returns the offset into the source's content of the last character of the position
+    public int getEnd() {
+        return (int) getSpan();
+    }
+
+    public int getStartLine() {
+        return source.getLineNumber(getStart());
+    }
+
+    public int getEndLine() {
+        return getStart() == getEnd() ? getStartLine() : source.getLineNumber(getEnd());
+    }
+
+    public int getStartChar() {
+        return getStart() - source.getLineOffset(getStartLine()) + 1;
+    }
+
+    public int getEndChar() {
+        return getEnd() - source.getLineOffset(getEndLine()) + 1;
+    }
+
     public int getLine() {
-        return line2;
+        return getEndLine();
+    }
+
+    // the public line1, char1, line2 and char2 fields positions used to have, which were removed rather than set as each
+    // position is created, as that would mean working out the lines of every token; these stand in for them, working
+    // the line and character out from offsets when asked for
+    // deprecated: use getStartLine(), getStartChar(), getEndLine() and getEndChar()
+    @Deprecated
+    public int getLine1() {
+        return getStartLine();
+    }
+
+    @Deprecated
+    public int getChar1() {
+        return getStartChar();
+    }
+
+    @Deprecated
+    public int getLine2() {
+        return getEndLine();
+    }
+
+    @Deprecated
+    public int getChar2() {
+        return getEndChar();
     }
 
     public Position to(Position other) {
         assert source == other.source;
-        return new Position(source, line1, other.line2, char1, other.char2);
+        return new Position(source, getSpan() & 0xFFFFFFFF00000000L | other.getSpan() & 0xFFFFFFFFL);
     }
 
     public Position after(int n) {
-        return new Position(source, line2, char2 + n);
+        return fromOffset(source, getEnd() + n);
     }
 
     // returns true if this position is directly after the first parameter's position
     public boolean isAfter(Position otherPosition) {
-        return source.equals(otherPosition.source) && line1 == otherPosition.line2 && char1 == otherPosition.char2 + 1;
+        return source.equals(otherPosition.source) && getStart() == otherPosition.getEnd() + 1;
     }
 
     // returns a string representation of the position, showing its source lines and pointers to the characters it spans
     public String getLineAndCaret() {
+        int line1 = getStartLine(), line2 = getEndLine(), char1 = getStartChar(), char2 = getEndChar();
         int lineNumberLength = Math.max(1, getLength(line1, line2));
 
         if (line1 == line2) {
@@ -91,24 +184,20 @@ public final class Position {
 
         Position position = (Position) o;
 
-        if (line1 != position.line1) return false;
-        if (line2 != position.line2) return false;
-        if (char1 != position.char1) return false;
-        if (char2 != position.char2) return false;
+        if (getSpan() != position.getSpan()) return false;
         return source.equals(position.source);
     }
 
     @Override public int hashCode() {
         int result = source.hashCode();
-        result = 31 * result + line1;
-        result = 31 * result + line2;
-        result = 31 * result + char1;
-        result = 31 * result + char2;
+        result = 31 * result + Long.hashCode(getSpan());
         return result;
     }
 
     @Override public String toString() {
-        if (line1 == line2) return source.toString() + "[" + line1 + " : " + char1 + " .. " + char2 + "]";
-        else return source.toString() + "[" + line1 + ", " + char1 + " .. " + line2 + ", " + char2 + "]";
+        int line1 = getStartLine(), line2 = getEndLine();
+
+        if (line1 == line2) return source.toString() + "[" + line1 + " : " + getStartChar() + " .. " + getEndChar() + "]";
+        else return source.toString() + "[" + line1 + ", " + getStartChar() + " .. " + line2 + ", " + getEndChar() + "]";
     }
 }
@@ -1,39 +1,152 @@
 package astify.core;
 
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
 
 import static java.util.Objects.hash;
 
 public abstract class Source {
+    // the offsets at which the lines of some content start, which positions find their lines and characters from
+    private static final class Lines {
+        final CharSequence content;
+        final int[] starts;
+
+        Lines(CharSequence content) {
+            int[] starts = new int[16];
+            int count = 1;
+
+            for (int i = 0; i < content.length(); ++i) {
+                if (content.charAt(i) != '\n') continue;
+                if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+                starts[count++] = i + 1;
+            }
+
+            this.content = content;
+            this.starts = Arrays.copyOf(starts, count);
+        }
+    }
+
+    // the lines of the content last returned, which are found again when the content changes
+    private volatile Lines lines;
+    // the number of edits made to the content which moved characters in it, which only an EditableSource makes
+    int edits = 0;
+
     public abstract String getName();
     public abstract String getContent();
 
+    // returns the content as a sequence of characters, which a source may give without creating a string of all of it
+    // the tokenizer and positions read the content through this rather than getContent()
+    public CharSequence getCharacters() {
+        return getContent();
+    }
+
+    // returns the content as it was last read, which lines and positions are found in
+    // this is getCharacters() unless a source has to check whether its content changed to give that, in which case it
+    // can give what it last read instead, only reading the content if it never has
+    protected CharSequence getLastCharacters() {
+        return getCharacters();
+    }
+
+    // returns the line of the content, counting from 1, without its newline, or an empty string past the last line
     public String getLine(int line) {
-        String content = getContent();
-        int startIndex = 0, endIndex;
+        Lines lines = getLines();
+        int index = Math.max(line, 1) - 1;
 
-        if (content == null) return "";
+        if (index >= lines.starts.length) return "";
 
-        for (; line > 1; line--) {
-            if ((startIndex = content.indexOf('\n', startIndex) + 1) == 0) {
-                startIndex = content.length();
-                break;
-            }
+        int end = index + 1 < lines.starts.length ? lines.starts[index + 1] - 1 : lines.content.length();
+        return lines.content.subSequence(lines.starts[index], end).toString();
+    }
+
+    // returns the span of a position, packed as in Position, moved past every edit made after the first `from`
+    long moveSpan(long span, int from) {
+        return span;
+    }
+
+    // returns the line the offset into the content is on, counting from 1
+    // an offset past the end of the content is on the last line
+    int getLineNumber(int offset) {
+        int[] starts = getLines().starts;
+        int low = 0, high = starts.length - 1;
+
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+
+            if (starts[mid] <= offset) low = mid;
+            else high = mid - 1;
         }
 
-        if ((endIndex = content.indexOf('\n', startIndex)) == -1) {
-            endIndex = content.length();
+        return low + 1;
+    }
+
+    // returns the offset into the content of the first character of the line, counting from 1
+    // lines before the first start where it does, and lines past the last start at the end of the content
+    int getLineOffset(int line) {
+        // the first line starts at the start of any content, so it's found without reading it
+        if (line <= 1) return 0;
+
+        Lines lines = getLines();
+        return line <= lines.starts.length ? lines.starts[line - 1] : lines.content.length();
+    }
+
+    private Lines getLines() {
+        CharSequence content = getLastCharacters();
+        Lines lines = this.lines;
+
+        if (content == null) content = "";
+
+        if (lines == null || lines.content != content) {
+            this.lines = lines = new Lines(content);
         }
 
-        return content.substring(startIndex, endIndex);
+        return lines;
     }
 
     public static class FileSource extends Source {
+        // recorded each time the content of a file source is read
+        @Name("astify.FileRead")
+        @Label("File Read")
+        @Category("astify")
+        @Description("The content of a file source read from disk")
+        static class FileReadEvent extends Event {
+            @Label("Source") String source;
+            @Label("Path") String path;
+            @Label("Size") @DataAmount(DataAmount.BYTES) long size;
+        }
+
+        // the content last read, along with the modification time and size of the file when it was read
+        private static final class Content {
+            final String content;
+            final FileTime modified;
+            final long size;
+
+            Content(String content, FileTime modified, long size) {
+                this.content = content;
+                this.modified = modified;
+                this.size = size;
+            }
+        }
+
         private final String fileName;
         private final String filePath;
+        private volatile Content content;
 
         public FileSource(String path, String name) throws FileNotFoundException {
             assert path != null;
@@ -59,15 +172,75 @@ public abstract class Source {
             return fileName;
         }
 
+        // the file is checked for changes each time the content is asked for, which the tokenizer does once per
+        // tokenization, and only read again once its modification time or size changes, and only by one thread at a time
         @Override public String getContent() {
+            BasicFileAttributes attributes = readAttributes();
+            FileTime modified;
+            long size;
+            Content content = this.content;
+
+            if (attributes == null) return read();
+
+            modified = attributes.lastModifiedTime();
+            size = attributes.size();
+
+            if (content != null && content.modified.equals(modified) && content.size == size) {
+                return content.content;
+            }
+
+            synchronized (this) {
+                content = this.content;
+
+                if (content == null || !content.modified.equals(modified) || content.size != size) {
+                    this.content = content = new Content(read(), modified, size);
+                }
+
+                return content.content;
+            }
+        }
+
+        // returns the content last read without checking whether the file has changed, so looking up lines and positions
+        // never touches the file once it has been read
+        @Override protected CharSequence getLastCharacters() {
+            Content content = this.content;
+            return content != null ? content.content : getContent();
+        }
+
+        // returns the attributes of the file, or null if they can't be read, in which case the file is read again
+        // every time
+        private BasicFileAttributes readAttributes() {
             try {
-                return new String(Files.readAllBytes(Paths.get(filePath)));
+                return Files.readAttributes(Paths.get(filePath), BasicFileAttributes.class);
             }
             catch (IOException e) {
-                return "";
+                return null;
             }
         }
 
+        private String read() {
+            FileReadEvent event = new FileReadEvent();
+            byte[] bytes;
+
+            event.begin();
+
+            try {
+                bytes = Files.readAllBytes(Paths.get(filePath));
+            }
+            catch (IOException e) {
+                bytes = new byte[0];
+            }
+
+            if (event.shouldCommit()) {
+                event.source = fileName;
+                event.path = filePath;
+                event.size = bytes.length;
+                event.commit();
+            }
+
+            return new String(bytes);
+        }
+
         @Override public boolean equals(Object other) {
             if (!(other instanceof FileSource)) return false;
             FileSource otherCasted = (FileSource) other;
@@ -79,6 +252,108 @@ public abstract class Source {
         }
     }
 
+    // a file source which maps the file into memory rather than reading it, for files too large to hold as a string
+    // each byte of the file is a character of the content, so the offsets and characters of positions count bytes, and
+    // the text of tokens and lines is decoded from their bytes with the source's charset, which must be ASCII, Latin-1
+    // or UTF-8
+    // the file mustn't change while the source is used, and can be no larger than the largest array
+    public static class MappedFileSource extends Source {
+        private final String fileName;
+        private final String filePath;
+        private final MappedCharacters characters;
+
+        public MappedFileSource(String path, String name, Charset charset) throws IOException {
+            assert path != null;
+            assert name != null;
+            assert charset != null;
+            assert charset.equals(StandardCharsets.US_ASCII) || charset.equals(StandardCharsets.ISO_8859_1) || charset.equals(StandardCharsets.UTF_8);
+
+            filePath = path;
+            fileName = name;
+
+            if (!Files.exists(Paths.get(filePath))) {
+                throw new FileNotFoundException("File not found '" + filePath + "'");
+            }
+
+            try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("File too large to map '" + filePath + "'");
+                }
+
+                characters = new MappedCharacters(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), 0, (int) channel.size(), charset);
+            }
+        }
+
+        public MappedFileSource(String path) throws IOException {
+            this(path, Paths.get(path).getFileName().toString(), StandardCharsets.UTF_8);
+        }
+
+        public String getPath() {
+            return filePath;
+        }
+
+        @Override public String getName() {
+            return fileName;
+        }
+
+        // decodes the whole file, so should be avoided for large files
+        @Override public String getContent() {
+            return characters.toString();
+        }
+
+        @Override public CharSequence getCharacters() {
+            return characters;
+        }
+
+        @Override public boolean equals(Object other) {
+            if (!(other instanceof MappedFileSource)) return false;
+            MappedFileSource otherCasted = (MappedFileSource) other;
+            return otherCasted.fileName.equals(fileName) && otherCasted.filePath.equals(filePath);
+        }
+
+        @Override public int hashCode() {
+            return hash(fileName, filePath);
+        }
+    }
+
+    // the bytes of part of a mapped file, as characters of one byte each
+    private static final class MappedCharacters implements CharSequence {
+        private final ByteBuffer bytes;
+        private final int offset, length;
+        private final Charset charset;
+
+        MappedCharacters(ByteBuffer bytes, int offset, int length, Charset charset) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.charset = charset;
+        }
+
+        @Override public int length() {
+            return length;
+        }
+
+        @Override public char charAt(int index) {
+            assert index >= 0 && index < length;
+            return (char) (bytes.get(offset + index) & 0xFF);
+        }
+
+        @Override public CharSequence subSequence(int start, int end) {
+            assert 0 <= start && start <= end && end <= length;
+            return new MappedCharacters(bytes, offset + start, end - start, charset);
+        }
+
+        // decodes the bytes with the source's charset
+        @Override public String toString() {
+            byte[] array = new byte[length];
+
+            // absolute bulk reads don't exist before Java 13, so read through a view of the bytes
+            bytes.duplicate().position(offset).get(array);
+
+            return new String(array, charset);
+        }
+    }
+
     public static class VirtualSource extends Source {
         private final String name;
         private final String content;
@@ -109,6 +384,65 @@ public abstract class Source {
         }
     }
 
+    // a source whose content is changed by edits, such as the buffer of an editor
+    // positions refer to the source rather than to a version of its content, so positions made before an edit show the
+    // content after it
+    // editable sources are only equal to themselves
+    public static class EditableSource extends Source {
+        private final String name;
+        private String content;
+        // the start and end of the characters replaced by each edit, and how many characters it moved those after by
+        private int[] replaced = new int[0];
+
+        public EditableSource(String name, String content) {
+            assert name != null;
+            assert content != null;
+            this.name = name;
+            this.content = content;
+        }
+
+        @Override public String getName() {
+            return name;
+        }
+
+        @Override public String getContent() {
+            return content;
+        }
+
+        // replaces the characters from `start` up to `end` with `replacement`
+        // positions made before the edit move with the characters they span, so those after the replaced characters
+        // move by the change in length, and those within them stay where they are up to the end of the replacement
+        public void replace(int start, int end, String replacement) {
+            assert 0 <= start && start <= end && end <= content.length();
+            assert replacement != null;
+            content = content.substring(0, start) + replacement + content.substring(end);
+
+            // an edit which doesn't change the length moves nothing
+            if (replacement.length() == end - start) return;
+
+            if (replaced.length == edits * 3) replaced = Arrays.copyOf(replaced, Math.max(24, replaced.length * 2));
+            replaced[edits * 3] = start;
+            replaced[edits * 3 + 1] = end;
+            replaced[edits * 3 + 2] = replacement.length() - (end - start);
+            ++edits;
+        }
+
+        @Override long moveSpan(long span, int from) {
+            int start = (int) (span >>> 32), end = (int) span;
+
+            for (int i = from; i < edits; ++i) {
+                start = move(start, replaced[i * 3], replaced[i * 3 + 1], replaced[i * 3 + 2]);
+                end = Math.max(start, move(end, replaced[i * 3], replaced[i * 3 + 1], replaced[i * 3 + 2]));
+            }
+
+            return Position.pack(start, end);
+        }
+
+        private static int move(int offset, int start, int end, int delta) {
+            return offset >= end ? offset + delta : Math.min(offset, end + delta);
+        }
+    }
+
     @Override public String toString() {
         return "<source " + getName() + ">";
     }
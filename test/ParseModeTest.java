@@ -0,0 +1,115 @@
+package astify;
+
+import astify.core.Source;
+import astify.token.TokenType;
+import astify.util.ParseUtil;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+// checks that ParseMode.FIRST finds the derivation preferred by declaration order, which is the one a backtracking
+// parser trying branches in order would find, including where sequences are shared by several parents
+// run with assertions enabled after compiling it along with the sources, e.g.
+//   javac -d out $(find . -name '*.java') && java -ea -cp out astify.ParseModeTest
+public class ParseModeTest {
+    private static final Map<String, Supplier<PatternBuilder>> grammars = new HashMap<>();
+
+    // grammar, input and the result expected, where sequences are described in brackets
+    private static final String[][] CASES = {
+        // the `else` is taken by the innermost `if`, as its optional `else` is tried before skipping it
+        { "if", "if a if b 1 else 2", "((if a (if b 1 (else 2)) _) EOF)" },
+        { "if", "if a if b if c 1 else 2 else 3", "((if a (if b (if c 1 (else 2)) (else 3)) _) EOF)" },
+        { "if", "if a if b if c 1 else 2", "((if a (if b (if c 1 (else 2)) _) _) EOF)" },
+        // the `else` is taken by the outermost `if`, as `ifelse` is tried before `if`
+        { "ifelse", "if a if b 1 else 2", "((if a (if b 1) else 2) EOF)" },
+        { "ifelse", "if a if b if c 1 else 2 else 3", "((if a (if b (if c 1) else 2) else 3) EOF)" },
+        // `e + e` is tried first for the left operand, so the left recursive rule associates to the left
+        { "left", "1 + 2 + 3", "(((1 + 2) + 3) EOF)" },
+        { "left", "1 + 2 + 3 + 4", "((((1 + 2) + 3) + 4) EOF)" },
+        // and associates to the right once the integer is tried first
+        { "right", "1 + 2 + 3", "((1 + (2 + 3)) EOF)" },
+        { "right", "1 + 2 + 3 + 4", "((1 + (2 + (3 + 4))) EOF)" },
+        { "prefix", "a b c", "(((a b) c) EOF)" },
+    };
+
+    private static int failures = 0;
+
+    static {
+        grammars.put("if", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.ref("stmt"), builder.eof());
+            builder.one_of("stmt", builder.ref("if"), builder.token(TokenType.Integer));
+            builder.sequence("if", builder.keyword("if"), builder.token(TokenType.Word), builder.ref("stmt"), builder.optional(builder.sequence(builder.keyword("else"), builder.ref("stmt"))));
+            return builder;
+        });
+        grammars.put("ifelse", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.ref("stmt"), builder.eof());
+            builder.one_of("stmt", builder.ref("ifelse"), builder.ref("if"), builder.token(TokenType.Integer));
+            builder.sequence("ifelse", builder.keyword("if"), builder.token(TokenType.Word), builder.ref("stmt"), builder.keyword("else"), builder.ref("stmt"));
+            builder.sequence("if", builder.keyword("if"), builder.token(TokenType.Word), builder.ref("stmt"));
+            return builder;
+        });
+        grammars.put("left", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.ref("e"), builder.eof());
+            builder.one_of("e", builder.sequence(builder.ref("e"), builder.symbol("+"), builder.ref("e")), builder.token(TokenType.Integer));
+            return builder;
+        });
+        grammars.put("right", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.ref("e"), builder.eof());
+            builder.one_of("e", builder.token(TokenType.Integer), builder.sequence(builder.ref("e"), builder.symbol("+"), builder.ref("e")));
+            return builder;
+        });
+        grammars.put("prefix", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.ref("x"), builder.eof());
+            builder.one_of("x", builder.sequence(builder.ref("x"), builder.token(TokenType.Word)), builder.sequence(builder.token(TokenType.Word), builder.ref("x")), builder.token(TokenType.Word));
+            return builder;
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String[] test : CASES) {
+            PatternBuilder builder = grammars.get(test[0]).get();
+            Capture result = ParseUtil.parseFirst(new Source.VirtualSource("src", test[1]), builder, "main");
+            List<Capture> all = ParseUtil.parse(new Source.VirtualSource("src", test[1]), builder, "main");
+            String actual = result == null ? "<no result>" : describe(result);
+            Set<String> derivations = new HashSet<>();
+
+            for (Capture capture : all) derivations.add(describe(capture));
+
+            check(actual.equals(test[2]), test[0] + " on \"" + test[1] + "\"\n  expected " + test[2] + "\n  got      " + actual);
+            check(derivations.contains(actual), test[0] + " on \"" + test[1] + "\" gives a derivation ParseMode.ALL finds");
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+
+        System.out.println("all checks passed");
+    }
+
+    // tokens are described by their values, empty captures as `_` and lists in brackets
+    private static String describe(Capture capture) {
+        if (capture instanceof Capture.TokenCapture) {
+            String value = ((Capture.TokenCapture) capture).getValue();
+            return value.isEmpty() ? "EOF" : value;
+        }
+        else if (capture instanceof Capture.ListCapture) {
+            StringJoiner result = new StringJoiner(" ", "(", ")");
+            for (Capture element : ((Capture.ListCapture) capture).all()) result.add(describe(element));
+            return result.toString();
+        }
+
+        return "_";
+    }
+
+    private static void check(boolean passed, String description) {
+        if (passed) return;
+        System.out.println("FAILED: " + description);
+        ++failures;
+    }
+}
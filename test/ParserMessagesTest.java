@@ -0,0 +1,142 @@
+package astify;
+
+import astify.core.Source;
+import astify.token.DefaultTokenGenerator;
+import astify.token.TokenType;
+import astify.util.ParseUtil;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+// checks that the Parser reports the same failures as it did before states were shared and branches were pruned,
+// including which rules each failure is reported in, for grammars where states are shared and branches are pruned
+// the expected messages are those the original Parser gave, which only differ from these in the order of the failures,
+// as that depends on the hash codes of token types
+// run with assertions enabled after compiling it along with the sources, e.g.
+//   javac -d out $(find . -name '*.java') && java -ea -cp out astify.ParserMessagesTest
+public class ParserMessagesTest {
+    private static final Map<String, Supplier<PatternBuilder>> grammars = new HashMap<>();
+
+    // grammar, input and the messages of the exceptions thrown, joined by newlines
+    private static final String[][] CASES = {
+        { "amb", "1", "Expected Word, got Integer \"1\" (in parse as main.x)\nExpected EOF, got Integer \"1\" (in parse as main)" },
+        { "amb", ";", "Expected Word, got Symbol \";\" (in parse as main.x)\nExpected EOF, got Symbol \";\" (in parse as main)" },
+        { "delim", "(1,)", "Expected one of {'[', Integer, Word}, got Symbol \")\"" },
+        { "delim", "(,)", "Expected one of {'[', Integer, Word}, got Symbol \",\" (in parse as main.v)\nExpected ')', got Symbol \",\" (in parse as main)" },
+        { "pred", "a", "Expected Word, got <EOF>" },
+        { "pred", "a b c", "Expected newline before Word \"c\" (in parse as main.s)\nExpected EOF, got Word \"c\" (in parse as main)" },
+        { "pred", "a\nb", "Unexpected newline before Word \"b\"" },
+        { "nospace", "1", "Expected one of {EOF, Symbol \"(\", Symbol \")\", Word}, got Integer \"1\"" },
+        { "nospace", "a;", "Expected one of {'(', ')', EOF, Word}, got Symbol \";\"" },
+        { "nospace", "x 1", "Expected one of {EOF, Symbol \"(\", Symbol \")\", Word}, got Integer \"1\"" },
+        { "ambexpr", "(1,)", "Expected ')', got Symbol \",\" (in parse as e.t)\nExpected '+', got Symbol \",\" (in parse as e.t.e)" },
+        { "ambexpr", "1 + + 2", "Expected one of {'(', Integer}, got Symbol \"+\"" },
+        { "matches", "a", "Expected one of {Integer, Keyword \"end\", Word}, got <EOF>" },
+        { "matches", "a b", "Expected one of {EOF, Integer, Keyword \"end\"}, got Word \"b\"" },
+        { "matches", ";", "Expected one of {EOF, Integer, Word}, got Symbol \";\"" },
+        { "nested", "a", "Expected one of {Symbol \";\", Word}, got <EOF>" },
+        { "nested", "1", "Expected EOF, got Integer \"1\" (in parse as main)\nExpected one of {Symbol \";\", Word}, got Integer \"1\" (in parse as main.a.c)" },
+        { "nested", "a=b", "Expected one of {';', Word}, got Symbol \"=\"" },
+        { "nested", "x 1", "Expected one of {Symbol \";\", Word}, got Integer \"1\"" },
+    };
+
+    private static int failures = 0;
+
+    static {
+        grammars.put("amb", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.list(builder.ref("x")), builder.eof());
+            builder.one_of("x", builder.token(TokenType.Word), builder.sequence(builder.token(TokenType.Word), builder.token(TokenType.Word)));
+            return builder;
+        });
+        grammars.put("delim", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.symbol("("), builder.optional(builder.delim(builder.ref("v"), builder.symbol(","))), builder.symbol(")"), builder.eof());
+            builder.one_of("v", builder.token(TokenType.Integer), builder.token(TokenType.Word), builder.sequence(builder.symbol("["), builder.ref("v"), builder.symbol("]")));
+            return builder;
+        });
+        grammars.put("pred", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.list(builder.ref("s")), builder.eof());
+            builder.sequence("s", builder.token(TokenType.Word), builder.token(TokenType.Word).addPredicate(MatchPredicate.sameLine()), builder.predicate(MatchPredicate.nextLine()));
+            return builder;
+        });
+        grammars.put("nospace", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.list(builder.one_of(builder.ref("call"), builder.token(TokenType.Word), builder.symbol("("), builder.symbol(")"))), builder.eof());
+            builder.sequence("call", builder.token(TokenType.Word), builder.symbol("(").addPredicate(MatchPredicate.noSpace()), builder.symbol(")"));
+            return builder;
+        });
+        grammars.put("ambexpr", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.ref("e"), builder.eof());
+            builder.one_of("e", builder.sequence(builder.ref("t"), builder.symbol("+"), builder.ref("e")), builder.ref("t"), builder.sequence(builder.ref("t"), builder.symbol("+"), builder.ref("t"), builder.symbol("+"), builder.ref("e")));
+            builder.one_of("t", builder.token(TokenType.Integer), builder.sequence(builder.symbol("("), builder.ref("e"), builder.symbol(")")));
+            return builder;
+        });
+        grammars.put("matches", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.list(builder.one_of(builder.sequence(builder.token(TokenType.Word), builder.predicate(MatchPredicate.matches(builder.token(TokenType.Integer)))), builder.token(TokenType.Integer), builder.sequence(builder.token(TokenType.Word), builder.keyword("end")))), builder.eof());
+            return builder;
+        });
+        grammars.put("nested", () -> {
+            PatternBuilder builder = new PatternBuilder();
+            builder.sequence("main", builder.list(builder.ref("a")), builder.eof());
+            builder.one_of("a", builder.ref("b"), builder.ref("c"));
+            builder.sequence("b", builder.optional(builder.token(TokenType.Word)), builder.symbol(";"));
+            builder.sequence("c", builder.list(builder.token(TokenType.Word)), builder.symbol(";"));
+            return builder;
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String[] test : CASES) {
+            Set<String> expected = normalise(Arrays.asList(test[2].split("\n")));
+            Set<String> actual = normalise(parse(grammars.get(test[0]).get(), test[1]));
+
+            check(expected.equals(actual), test[0] + " on \"" + test[1].replace("\n", "\\n") + "\"\n  expected " + expected + "\n  got      " + actual);
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+
+        System.out.println("all checks passed");
+    }
+
+    private static List<String> parse(PatternBuilder builder, String text) throws Exception {
+        try {
+            ParseUtil.parse(builder, new DefaultTokenGenerator(new Source.VirtualSource("src", text), builder.getKeywords(), builder.getSymbols()), "main");
+            return Collections.emptyList();
+        }
+        catch (ParserException e) {
+            return Arrays.asList(e.getMessage().split("\n\t"));
+        }
+    }
+
+    // the expected values listed by a message are sorted, as their order depends on hash codes
+    private static Set<String> normalise(List<String> messages) {
+        Set<String> result = new HashSet<>();
+
+        for (String message : messages) {
+            int open = message.indexOf('{'), close = message.indexOf('}');
+
+            if (open != -1 && close > open) {
+                List<String> expected = new ArrayList<>(Arrays.asList(message.substring(open + 1, close).split(", ")));
+                Collections.sort(expected);
+                message = message.substring(0, open + 1) + String.join(", ", expected) + message.substring(close);
+            }
+
+            result.add(message);
+        }
+
+        return result;
+    }
+
+    private static void check(boolean passed, String description) {
+        if (passed) return;
+        System.out.println("FAILED: " + description);
+        ++failures;
+    }
+}
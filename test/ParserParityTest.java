@@ -0,0 +1,287 @@
+package astify;
+
+import astify.core.Source;
+import astify.token.DefaultTokenGenerator;
+import astify.token.TokenException;
+import astify.token.TokenGenerator;
+import astify.token.TokenType;
+import astify.util.ParseUtil;
+import astify.util.StreamingParser;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// checks that every alternative way of parsing gives the same results as the breadth-first Parser, for a grammar they
+// all support (LL(1), unambiguous and without left recursion)
+// run with assertions enabled after compiling it along with the sources, e.g.
+//   javac -d out $(find . -name '*.java') && java -ea -cp out astify.ParserParityTest
+// generated parsers are compiled with the system Java compiler, so are skipped when running on a JRE without one
+public class ParserParityTest {
+    private static final String[] VALID = {
+        "",
+        "let x = 1;",
+        "let x = 1 + y - (2 - z);\nprint x, 3, (a + b);\n",
+        "{ let a = 1; { print a; } }\nprint 1;",
+        "print (((1)));\n// comment\n{ }\n/* block\n comment */ let y = a + b + c - d;",
+    };
+
+    private static final String[] INVALID = {
+        "let x = ;",
+        "print 1",
+        "{ let x = 1;",
+        "let x = 1; }",
+        "print 1 + + 2;",
+    };
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        PatternBuilder builder = createBuilder();
+        CompiledGrammar grammar = builder.compile();
+
+        check(new LL1Parser(grammar).isLL1(), "grammar is LL(1)");
+
+        for (String text : VALID) check(!parse(grammar, text).startsWith("<"), "Parser accepts \"" + text + "\"");
+        for (String text : INVALID) check(parse(grammar, text).equals("<parse error>"), "Parser rejects \"" + text + "\"");
+
+        testLL1Parser(grammar);
+        testPackratParser(grammar);
+        testGeneratedParser(builder, grammar);
+        testStreamingParser(grammar);
+        testStreamingSplits();
+        testIncrementalParser(grammar);
+
+        if (failures > 0) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+
+        System.out.println("all checks passed");
+    }
+
+    private static PatternBuilder createBuilder() {
+        PatternBuilder builder = new PatternBuilder();
+
+        builder.sequence("main", builder.list(builder.ref("stmt")), builder.eof());
+        builder.one_of("stmt", builder.ref("let"), builder.ref("print"), builder.ref("block"));
+        builder.sequence("let", builder.keyword("let"), builder.token(TokenType.Word), builder.symbol("="), builder.ref("expr"), builder.symbol(";"));
+        builder.sequence("print", builder.keyword("print"), builder.ref("expr"), builder.list(builder.sequence(builder.symbol(","), builder.ref("expr"))), builder.symbol(";"));
+        builder.sequence("block", builder.symbol("{"), builder.list(builder.ref("stmt")), builder.symbol("}"));
+        builder.sequence("expr", builder.ref("term"), builder.list(builder.sequence(builder.one_of(builder.symbol("+"), builder.symbol("-")), builder.ref("term"))));
+        builder.one_of("term", builder.token(TokenType.Integer), builder.token(TokenType.Word), builder.sequence(builder.symbol("("), builder.ref("expr"), builder.symbol(")")));
+
+        return builder;
+    }
+
+    private static void testLL1Parser(CompiledGrammar grammar) {
+        for (String text : VALID) {
+            compare("LL1Parser", text, parse(grammar, text), describe(() -> new LL1Parser(grammar).parse(tokenize(grammar, text))));
+        }
+
+        for (String text : INVALID) {
+            compare("LL1Parser", text, parse(grammar, text), describe(() -> new LL1Parser(grammar).parse(tokenize(grammar, text))));
+        }
+    }
+
+    private static void testPackratParser(CompiledGrammar grammar) {
+        for (String text : VALID) {
+            compare("PackratParser", text, parse(grammar, text), describe(() -> Collections.singletonList(new PackratParser(grammar).parse(tokenize(grammar, text)))));
+        }
+
+        for (String text : INVALID) {
+            compare("PackratParser", text, parse(grammar, text), describe(() -> Collections.singletonList(new PackratParser(grammar).parse(tokenize(grammar, text)))));
+        }
+    }
+
+    private static void testGeneratedParser(PatternBuilder builder, CompiledGrammar grammar) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+        if (compiler == null) {
+            System.out.println("skipped ParserGenerator: no Java compiler available");
+            return;
+        }
+
+        Path directory = Files.createTempDirectory("astify-generated");
+        Path file = new ParserGenerator(builder).write(directory, "astify.generated", "ParityParser");
+        String classPath = System.getProperty("java.class.path");
+
+        check(compiler.run(null, null, null, "-nowarn", "-cp", classPath, "-d", directory.toString(), file.toString()) == 0, "generated parser compiles");
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { directory.toUri().toURL() }, ParserParityTest.class.getClassLoader())) {
+            Class<?> parserClass = loader.loadClass("astify.generated.ParityParser");
+            Object parser = parserClass.getConstructor().newInstance();
+            Method parse = parserClass.getMethod("parse", TokenGenerator.class);
+
+            for (String text : VALID) {
+                compare("ParserGenerator", text, parse(grammar, text), describe(() -> Collections.singletonList(invoke(parse, parser, tokenize(grammar, text)))));
+            }
+
+            for (String text : INVALID) {
+                compare("ParserGenerator", text, parse(grammar, text), describe(() -> Collections.singletonList(invoke(parse, parser, tokenize(grammar, text)))));
+            }
+        }
+    }
+
+    // calls a method of a generated parser, throwing what it throws
+    private static Capture invoke(Method method, Object parser, Object... args) throws Exception {
+        try {
+            return (Capture) method.invoke(parser, args);
+        }
+        catch (InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    // the elements streamed are the statements the Parser finds in the list of `main`
+    private static void testStreamingParser(CompiledGrammar grammar) {
+        for (String text : VALID) {
+            String expected = describe(() -> {
+                List<Capture> results = ParseUtil.parse(grammar, tokenize(grammar, text), "main");
+                return ((Capture.ListCapture) ((Capture.ListCapture) results.get(0)).get(0)).all();
+            });
+            String streamed = describe(() -> {
+                List<Capture> elements = new ArrayList<>();
+                new StreamingParser(grammar, "stmt").parse(tokenize(grammar, text), elements::add);
+                return elements;
+            });
+
+            compare("StreamingParser", text, expected, streamed);
+        }
+    }
+
+    // elements of different lengths, where the longest element isn't always followed by a valid parse, and where the
+    // input can be split into elements in two ways, which the Parser finds two derivations for
+    private static void testStreamingSplits() throws Exception {
+        PatternBuilder builder = new PatternBuilder();
+
+        builder.sequence("main", builder.list(builder.ref("x")), builder.eof());
+        builder.one_of("x", builder.sequence(builder.token(TokenType.Word), builder.token(TokenType.Integer)), builder.token(TokenType.Word), builder.sequence(builder.token(TokenType.Integer), builder.token(TokenType.Integer), builder.token(TokenType.Word)), builder.sequence(builder.token(TokenType.Word), builder.token(TokenType.Word)));
+
+        CompiledGrammar grammar = builder.compile();
+
+        for (String text : new String[] { "a 1 2 b", "a 1", "a 1 2 b c 3", "a 1 b 2" }) {
+            String expected = describe(() -> {
+                List<Capture> results = ParseUtil.parse(grammar, tokenize(grammar, text), "main");
+                return ((Capture.ListCapture) ((Capture.ListCapture) results.get(0)).get(0)).all();
+            });
+            String streamed = describe(() -> {
+                List<Capture> elements = new ArrayList<>();
+                new StreamingParser(grammar, "x").parse(tokenize(grammar, text), elements::add);
+                return elements;
+            });
+
+            compare("StreamingParser", text, expected, streamed);
+        }
+
+        check(ParseUtil.parse(grammar, tokenize(grammar, "a b"), "main").size() == 2, "Parser finds two derivations of \"a b\"");
+
+        try {
+            new StreamingParser(grammar, "x").parse(tokenize(grammar, "a b"), element -> {});
+            check(false, "StreamingParser reports \"a b\" as ambiguous");
+        }
+        catch (ParseUtil.AmbiguityException e) {
+            check(e.getResults().size() == 2, "StreamingParser gives both ways of splitting \"a b\"");
+        }
+    }
+
+    // random edits of the valid inputs, each parsed again incrementally and from scratch
+    private static void testIncrementalParser(CompiledGrammar grammar) {
+        String alphabet = "let print x 1 + ; { } ( ) = ,\n";
+        Random random = new Random(1);
+        StringBuilder large = new StringBuilder();
+
+        for (int i = 0; i < 200; ++i) {
+            large.append("let v").append(i).append(" = a + (b - ").append(i).append(");\n");
+        }
+
+        List<String> texts = new ArrayList<>(Arrays.asList(VALID));
+        texts.add(large.toString());
+
+        for (String text : texts) {
+            Source.EditableSource source = new Source.EditableSource("src", text);
+            IncrementalParser parser = new IncrementalParser(grammar, source);
+
+            compare("IncrementalParser", text, parse(grammar, text), describeIncremental(parser));
+
+            for (int i = 0; i < 100; ++i) {
+                String content = source.getContent();
+                int start = random.nextInt(content.length() + 1);
+                int end = Math.min(content.length(), start + random.nextInt(4));
+                String replacement = alphabet.substring(random.nextInt(alphabet.length()));
+
+                replacement = replacement.substring(0, Math.min(replacement.length(), random.nextInt(4)));
+                parser.edit(start, end, replacement);
+                compare("IncrementalParser", source.getContent(), parse(grammar, source.getContent()), describeIncremental(parser));
+            }
+        }
+    }
+
+    private interface Parse {
+        List<Capture> parse() throws Exception;
+    }
+
+    private static String parse(CompiledGrammar grammar, String text) {
+        return describe(() -> ParseUtil.parse(grammar, tokenize(grammar, text), "main"));
+    }
+
+    private static TokenGenerator tokenize(CompiledGrammar grammar, String text) {
+        return new DefaultTokenGenerator(new Source.VirtualSource("src", text), grammar.getKeywords(), grammar.getSymbols());
+    }
+
+    // describes the results, or only that parsing failed, as parsers report failures differently
+    private static String describe(Parse parse) {
+        try {
+            StringBuilder result = new StringBuilder();
+            for (Capture capture : parse.parse()) describe(capture, result);
+            return result.toString();
+        }
+        catch (TokenException e) {
+            return "<token error>";
+        }
+        catch (ParserException e) {
+            return "<parse error>";
+        }
+        catch (Exception e) {
+            return "<" + e + ">";
+        }
+    }
+
+    private static String describeIncremental(IncrementalParser parser) {
+        if (parser.getTokenException() != null) return "<token error>";
+        if (parser.hasError()) return "<parse error>";
+        return describe(parser::getResults);
+    }
+
+    private static void describe(Capture capture, StringBuilder result) {
+        if (capture instanceof Capture.TokenCapture) {
+            result.append(((Capture.TokenCapture) capture).getValue());
+        }
+        else if (capture instanceof Capture.ListCapture) {
+            result.append("[");
+            for (Capture element : ((Capture.ListCapture) capture).all()) describe(element, result);
+            result.append("]");
+        }
+        else {
+            result.append(capture.getClass().getSimpleName());
+        }
+
+        result.append("@").append(capture.getPosition()).append(" ");
+    }
+
+    private static void compare(String parser, String text, String expected, String actual) {
+        check(expected.equals(actual), parser + " on \"" + text.replace("\n", "\\n") + "\"\n  expected " + expected + "\n  got      " + actual);
+    }
+
+    private static void check(boolean passed, String description) {
+        if (passed) return;
+        System.out.println("FAILED: " + description);
+        ++failures;
+    }
+}
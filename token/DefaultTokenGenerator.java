@@ -3,215 +3,417 @@ package astify.token;
 
 import astify.core.Position;
 import astify.core.Source;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 import java.util.HashSet;
 import java.util.Set;
 
 public class DefaultTokenGenerator implements TokenGenerator {
+    // recorded for a run of a generator, from its first token up to EOF or a token error
+    @Name("astify.Tokenize")
+    @Label("Tokenize")
+    @Category("astify")
+    @Description("Tokens generated from a source by a DefaultTokenGenerator")
+    static class TokenizeEvent extends Event {
+        @Label("Source") String source;
+        @Label("Size") @Description("The number of characters in the source") long size;
+        @Label("Tokens") int tokens;
+    }
+
     protected final Source source;
+    // the content of the source, as given by Source.getCharacters()
+    protected final CharSequence contentCharacters;
+    // the content as a string, which is what subclasses read before sources could give their content as characters
+    // this is null for sources which don't give their content as a string, such as a MappedFileSource
+    // deprecated: use `contentCharacters`
+    @Deprecated
     protected final String contentBuffer;
     protected final Set<String> keywords;
+    // the symbols of the grammar, of which the longest at each symbol is generated as a single token
+    private final ValueTrie symbols;
 
     protected Position currentPosition;
     protected int currentBufferPosition;
 
-    public DefaultTokenGenerator(Source source, Set<String> keywords) {
+    // the event for this run of the generator, begun at its first token, and the number of tokens generated since
+    private TokenizeEvent event;
+    private int tokenCount;
+    private boolean ended;
+
+    // `symbols` are the symbols a grammar matches, as given by PatternBuilder.getSymbols()
+    public DefaultTokenGenerator(Source source, Set<String> keywords, Set<String> symbols) {
         this.source = source;
         this.keywords = keywords;
+        this.symbols = ValueTrie.of(TokenType.Symbol, symbols);
 
-        contentBuffer = source.getContent();
-        currentPosition = new Position(source, 1, 1);
+        contentCharacters = source.getCharacters();
+        contentBuffer = contentCharacters instanceof String ? (String) contentCharacters : null;
+        currentPosition = Position.fromOffset(source, 0);
+    }
+
+    // generates every symbol character as a token of its own, which symbol patterns of more than one character still
+    // match as a sequence of tokens (see PatternBuilder.symbol())
+    // deprecated: pass the grammar's symbols, as given by CompiledGrammar.getSymbols() or PatternBuilder.getSymbols()
+    @Deprecated
+    public DefaultTokenGenerator(Source source, Set<String> keywords) {
+        this(source, keywords, new HashSet<>());
     }
 
+    // generates symbols as the (Source, Set) constructor does
+    // deprecated: pass the grammar's keywords and symbols
+    @Deprecated
     public DefaultTokenGenerator(Source source) {
-        this(source, new HashSet<>());
+        this(source, new HashSet<>(), new HashSet<>());
+    }
+
+    // generates tokens from part way through the source, where `position` is the position of the character at `offset`
+    public DefaultTokenGenerator(Source source, Set<String> keywords, Set<String> symbols, int offset, Position position) {
+        this(source, keywords, symbols);
+
+        assert offset >= 0 && offset <= contentCharacters.length();
+        assert position != null && position.getStart() == offset;
+
+        currentBufferPosition = offset;
+        currentPosition = position;
+    }
+
+    // returns the offset into the source's content of the character after the last token generated
+    public int getOffset() {
+        return currentBufferPosition;
     }
 
     @Override public Token getNext() throws TokenException {
-        if (currentBufferPosition >= contentBuffer.length()) {
-            return new Token(TokenType.EOF, "", currentPosition);
-        }
-        if (matchString("//")) {
-            int pos = contentBuffer.indexOf('\n', currentBufferPosition) + 1;
-            if (pos == 0) pos = contentBuffer.length();
-            advance(pos - currentBufferPosition);
-            return getNext();
-        }
-        if (matchString("/*")) {
-            int pos = contentBuffer.indexOf("*/") + 2;
+        Token token;
 
-            if (pos == 1) {
-                throw new TokenException("expected closing */ to close comment", currentPosition);
-            }
+        if (event == null) {
+            event = new TokenizeEvent();
+            event.begin();
+        }
 
-            advance(pos - currentBufferPosition);
-            return getNext();
+        try {
+            token = next();
         }
-        if (matchString(" ") || matchString("\t") || matchString("\r") || matchString("\n")) {
-            advance(1);
-            return getNext();
+        catch (TokenException e) {
+            endEvent();
+            throw e;
         }
 
-        if (matchString("'") || matchString("\"")) {
-            return consumeString();
+        if (token.getType() == TokenType.EOF) endEvent();
+        else ++tokenCount;
+
+        return token;
+    }
+
+    private void endEvent() {
+        if (ended) return;
+
+        ended = true;
+
+        if (event.shouldCommit()) {
+            event.source = source.getName();
+            event.size = contentCharacters.length();
+            event.tokens = tokenCount;
+            event.commit();
         }
-        if (isDigit()) {
-            Token integer = consumeInteger();
+    }
 
-            if (matchString(".")) {
-                advance(1);
+    private Token next() throws TokenException {
+        int offset = skipIgnored(currentBufferPosition);
+        char c;
 
-                if (!isDigit()) {
-                    throw new TokenException("expected digit after '.'", currentPosition);
-                }
+        if (offset != currentBufferPosition) moveTo(offset);
+
+        if (offset >= contentCharacters.length()) {
+            return new Token(TokenType.EOF, "", currentPosition);
+        }
 
-                Token decimal = consumeInteger();
+        c = contentCharacters.charAt(offset);
 
-                if (matchString("e")) {
-                    String expSign = "";
+        if (c == '\'' || c == '"') {
+            return consumeString();
+        }
+        if (isDigit(c)) {
+            return consumeNumber();
+        }
+        if (isAlpha(c)) {
+            return consumeWord();
+        }
 
-                    advance(1);
+        return consumeSymbol();
+    }
 
-                    if (matchString("+") || matchString("-")) {
-                        expSign = read(1);
-                        advance(1);
-                    }
+    // adds every token left to the buffer, without creating a Token or a position for any of them
+    void generate(TokenBuffer buffer) throws TokenException {
+        ValueTrie keywordKinds = ValueTrie.of(TokenType.Keyword, keywords);
+        int offset = currentBufferPosition, end, kind;
+        TokenType type;
+        char c;
 
-                    if (!isDigit()) {
-                        throw new TokenException("expected digit after " + (expSign.equals("") ? "'e'" : expSign), currentPosition);
-                    }
+        if (event == null) {
+            event = new TokenizeEvent();
+            event.begin();
+        }
 
-                    Token exponent = consumeInteger();
+        try {
+            while ((offset = skipIgnored(offset)) < contentCharacters.length()) {
+                c = contentCharacters.charAt(offset);
+                kind = -1;
 
-                    return new Token(TokenType.Float, integer.getValue() + "." + decimal.getValue() + "e" + expSign + exponent.getValue(), integer.getPosition().to(exponent.getPosition()));
+                if (c == '\'' || c == '"') {
+                    type = TokenType.String;
+                    end = endOfString(offset);
+                }
+                else if (isDigit(c)) {
+                    end = endOfNumber(offset);
+                    type = skipDigits(offset) == end ? TokenType.Integer : TokenType.Float;
+                }
+                else if (isAlpha(c)) {
+                    end = endOfWord(offset);
+                    kind = keywordKinds.getKind(contentCharacters, offset, end);
+                    type = kind == -1 ? TokenType.Word : TokenType.Keyword;
+                }
+                else {
+                    end = endOfSymbol(offset);
+                    kind = symbols.getKind(contentCharacters, offset, end);
+                    type = TokenType.Symbol;
                 }
 
-                return new Token(TokenType.Float, integer.getValue() + "." + decimal.getValue(), integer.getPosition().to(decimal.getPosition()));
+                buffer.add(type, kind == -1 ? TokenKinds.NONE : kind, offset, end);
+                offset = end;
+                ++tokenCount;
             }
-
-            return integer;
         }
-        if (isAlpha()) {
-            return consumeWord();
+        catch (TokenException e) {
+            endEvent();
+            throw e;
         }
 
-        String s = read(1);
-        Position p = currentPosition;
-        advance(1);
-
-        return new Token(TokenType.Symbol, s, p);
+        // the position is found once, here, rather than for every token
+        moveTo(offset);
+        endEvent();
     }
 
-    protected Token consumeString() throws TokenException {
-        String open = read(1);
-        StringBuilder result = new StringBuilder();
-        Position startPosition = currentPosition, position;
-        boolean escaped = false;
+    // returns the offset of the first character from `offset` which isn't whitespace or in a comment
+    private int skipIgnored(int offset) throws TokenException {
+        int length = contentCharacters.length();
 
-        result.append(open);
-        advance(1);
+        while (offset < length) {
+            char c = contentCharacters.charAt(offset);
 
-        while (!read(1).equals(open)) {
-            String c = read(1);
-
-            if (c.equals("")) {
-                throw new TokenException("expected closing " + open + " to close string", startPosition);
+            if (c == '/' && offset + 1 < length && contentCharacters.charAt(offset + 1) == '/') {
+                int end = indexOf(contentCharacters, "\n", offset);
+                offset = end == -1 ? length : end + 1;
             }
+            else if (c == '/' && offset + 1 < length && contentCharacters.charAt(offset + 1) == '*') {
+                int end = indexOf(contentCharacters, "*/", offset + 2);
 
-            if (!escaped) {
-                if (c.equals("\\")) {
-                    escaped = true;
-                }
-                if (c.equals("\n")) {
-                    throw new TokenException("unexpected newline", currentPosition);
+                if (end == -1) {
+                    moveTo(offset);
+                    throw new TokenException("expected closing */ to close comment", currentPosition);
                 }
+
+                offset = end + 2;
+            }
+            else if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                ++offset;
             }
             else {
-                escaped = false;
+                break;
             }
-
-            result.append(c);
-            advance(1);
         }
 
-        position = startPosition.to(currentPosition);
-        result.append(open);
-        advance(1);
+        return offset;
+    }
 
-        return new Token(TokenType.String, result.toString(), position);
+    protected Token consumeString() throws TokenException {
+        int end = endOfString(currentBufferPosition);
+        return new Token(TokenType.String, contentCharacters.subSequence(currentBufferPosition, end).toString(), consumeTo(end));
+    }
+
+    // an integer, or a float if it's followed by a '.' and more digits, optionally with an exponent
+    protected Token consumeNumber() throws TokenException {
+        int end = endOfNumber(currentBufferPosition);
+        TokenType type = skipDigits(currentBufferPosition) == end ? TokenType.Integer : TokenType.Float;
+        return new Token(type, contentCharacters.subSequence(currentBufferPosition, end).toString(), consumeTo(end));
     }
 
     protected Token consumeInteger() {
-        StringBuilder number = new StringBuilder();
-        Position position = currentPosition;
+        int end = skipDigits(currentBufferPosition);
+        return new Token(TokenType.Integer, contentCharacters.subSequence(currentBufferPosition, end).toString(), consumeTo(end));
+    }
 
-        for (; isDigit(); advance(1)) {
-            number.append(getCharacter());
-            position = position.to(currentPosition);
+    protected Token consumeWord() {
+        int end = endOfWord(currentBufferPosition);
+        String word = contentCharacters.subSequence(currentBufferPosition, end).toString();
+        return new Token(keywords.contains(word) ? TokenType.Keyword : TokenType.Word, word, consumeTo(end));
+    }
+
+    protected Token consumeSymbol() {
+        int end = endOfSymbol(currentBufferPosition);
+        return new Token(TokenType.Symbol, contentCharacters.subSequence(currentBufferPosition, end).toString(), consumeTo(end));
+    }
+
+    // the end of the string whose opening quote is at `start`, after its closing quote
+    private int endOfString(int start) throws TokenException {
+        char open = contentCharacters.charAt(start);
+        int end = start + 1;
+        boolean escaped = false;
+
+        // an escaped quote still closes the string, but an escaped newline doesn't end it
+        for (; end < contentCharacters.length() && contentCharacters.charAt(end) != open; ++end) {
+            char c = contentCharacters.charAt(end);
+
+            if (escaped) {
+                escaped = false;
+            }
+            else if (c == '\\') {
+                escaped = true;
+            }
+            else if (c == '\n') {
+                moveTo(end);
+                throw new TokenException("unexpected newline", currentPosition);
+            }
+        }
+
+        if (end == contentCharacters.length()) {
+            moveTo(end);
+            throw new TokenException("expected closing " + open + " to close string", Position.fromOffset(source, start));
         }
 
-        return new Token(TokenType.Integer, number.toString(), position);
+        return end + 1;
     }
 
-    protected Token consumeWord() {
-        StringBuilder word = new StringBuilder();
-        Position position = currentPosition;
+    private int endOfNumber(int start) throws TokenException {
+        int end = skipDigits(start);
+
+        if (getCharacter(end) == '.') {
+            if (!isDigit(getCharacter(end + 1))) {
+                moveTo(end + 1);
+                throw new TokenException("expected digit after '.'", currentPosition);
+            }
+
+            end = skipDigits(end + 1);
+
+            if (getCharacter(end) == 'e') {
+                int exponent = end + 1;
+                char sign = getCharacter(exponent);
+
+                if (sign == '+' || sign == '-') ++exponent;
+
+                if (!isDigit(getCharacter(exponent))) {
+                    moveTo(exponent);
+                    throw new TokenException("expected digit after " + (exponent == end + 1 ? "'e'" : String.valueOf(sign)), currentPosition);
+                }
 
-        for (; isAlpha(); advance(1)) {
-            word.append(getCharacter());
-            position = position.to(currentPosition);
+                end = skipDigits(exponent);
+            }
         }
 
-        return new Token(keywords.contains(word.toString()) ? TokenType.Keyword : TokenType.Word, word.toString(), position);
+        return end;
+    }
+
+    private int endOfWord(int start) {
+        int end = start;
+        while (end < contentCharacters.length() && isAlpha(contentCharacters.charAt(end))) ++end;
+        return end;
+    }
+
+    // the end of the longest symbol at `start`, where a character which isn't a symbol of the grammar is a symbol of
+    // one character on its own
+    private int endOfSymbol(int start) {
+        return start + Math.max(1, symbols.match(contentCharacters, start));
     }
 
     protected boolean matchString(String s) {
-        return currentBufferPosition < contentBuffer.length() && contentBuffer.indexOf(s, currentBufferPosition) == currentBufferPosition;
+        return currentBufferPosition < contentCharacters.length() && startsWith(contentCharacters, s, currentBufferPosition);
     }
 
     protected String read(int length) {
-        if (currentBufferPosition >= contentBuffer.length()) {
+        if (currentBufferPosition >= contentCharacters.length()) {
             return "";
         }
-        return contentBuffer.substring(currentBufferPosition, Math.min(currentBufferPosition + length, contentBuffer.length()));
+        return contentCharacters.subSequence(currentBufferPosition, Math.min(currentBufferPosition + length, contentCharacters.length())).toString();
     }
 
     protected boolean isDigit() {
-        char c = getCharacter();
-        return c >= '0' && c <= '9';
+        return isDigit(getCharacter());
     }
 
     protected boolean isAlpha() {
-        char c = getCharacter();
-        return isDigit() || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+        return isAlpha(getCharacter());
     }
 
     protected char getCharacter() {
-        return currentBufferPosition < contentBuffer.length() ? contentBuffer.charAt(currentBufferPosition) : 0;
+        return getCharacter(currentBufferPosition);
     }
 
     protected void advance(int characters) {
         assert characters >= 0;
-        if (currentBufferPosition >= contentBuffer.length()) return;
-        int newlinePosition;
-        int finalPosition = currentBufferPosition + characters;
+        if (currentBufferPosition >= contentCharacters.length()) return;
+        moveTo(currentBufferPosition + characters);
+    }
 
-        currentPosition = new Position(source, currentPosition.getLine(), currentPosition.char2 + characters);
+    @Override public Position getStartingPosition() {
+        return Position.fromOffset(source, 0);
+    }
 
-        while ((newlinePosition = contentBuffer.indexOf('\n', currentBufferPosition)) != -1) {
-            if (newlinePosition < finalPosition) {
-                currentPosition = new Position(source, currentPosition.getLine() + 1, finalPosition - newlinePosition);
-                currentBufferPosition = newlinePosition + 1;
-            }
-            else {
-                break;
-            }
+    // moves past the characters of a token from the current offset up to `end`, returning the position spanning them
+    private Position consumeTo(int end) {
+        Position start = currentPosition;
+
+        moveTo(end);
+
+        // a token of one character is at the current position, so it needn't be created again
+        return end == start.getStart() + 1 ? start : Position.fromOffsets(source, start.getStart(), end - 1);
+    }
+
+    // moves to the offset and creates the position there
+    private void moveTo(int offset) {
+        currentBufferPosition = offset;
+        currentPosition = Position.fromOffset(source, offset);
+    }
+
+    private int skipDigits(int offset) {
+        while (offset < contentCharacters.length() && isDigit(contentCharacters.charAt(offset))) ++offset;
+        return offset;
+    }
+
+    private char getCharacter(int offset) {
+        return offset < contentCharacters.length() ? contentCharacters.charAt(offset) : 0;
+    }
+
+    // returns whether `s` is in the content at `offset`
+    static boolean startsWith(CharSequence content, String s, int offset) {
+        if (offset + s.length() > content.length()) return false;
+
+        for (int i = 0; i < s.length(); ++i) {
+            if (content.charAt(offset + i) != s.charAt(i)) return false;
         }
 
-        currentBufferPosition = finalPosition;
+        return true;
     }
 
-    @Override public Position getStartingPosition() {
-        return new Position(source, 1, 1);
+    // returns the offset of the first `s` in the content from `offset`, or -1 if there is none
+    private static int indexOf(CharSequence content, String s, int offset) {
+        // a string is searched by String.indexOf(), which is much faster than comparing characters one at a time
+        if (content instanceof String) return ((String) content).indexOf(s, offset);
+
+        for (int i = offset; i + s.length() <= content.length(); ++i) {
+            if (startsWith(content, s, i)) return i;
+        }
+
+        return -1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAlpha(char c) {
+        return isDigit(c) || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
     }
 }
@@ -9,11 +9,20 @@ public class Token implements Positioned {
     private final TokenType type;
     private final String value;
     private final Position position;
+    private final int kind;
 
     public Token(TokenType type, String value, Position position) {
+        this(type, value, position, TokenKinds.lookup(type, value));
+    }
+
+    // creates a token whose kind is already known, which must be what TokenKinds gives for its type and value, or
+    // TokenKinds.NONE
+    public Token(TokenType type, String value, Position position, int kind) {
+        assert kind == TokenKinds.NONE || kind == TokenKinds.lookup(type, value);
         this.type = type;
         this.value = value;
         this.position = position;
+        this.kind = kind;
     }
 
     public TokenType getType() {
@@ -24,12 +33,18 @@ public class Token implements Positioned {
         return value;
     }
 
+    // returns the kind interned for the type and value of this token, or TokenKinds.NONE if they weren't interned
+    // when the token was created
+    public int getKind() {
+        return kind;
+    }
+
     public boolean matches(TokenType type) {
-        return this.type == type;
+        return getType() == type;
     }
 
     public boolean matches(TokenType type, String value) {
-        return matches(type) && this.value.equals(value);
+        return matches(type) && getValue().equals(value);
     }
 
     @Override public Position getPosition() {
@@ -37,17 +52,17 @@ public class Token implements Positioned {
     }
 
     @Override public String toString() {
-        if (type == TokenType.EOF) return "<EOF>";
-        return type.toString() + " \"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+        if (getType() == TokenType.EOF) return "<EOF>";
+        return getType().toString() + " \"" + getValue().replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
     }
 
     @Override public boolean equals(Object other) {
         if (!(other instanceof Token)) return false;
         Token otherCasted = (Token) other;
-        return type == otherCasted.type && value.equals(otherCasted.value);
+        return getType() == otherCasted.getType() && getValue().equals(otherCasted.getValue());
     }
 
     @Override public int hashCode() {
-        return hash(type, value);
+        return hash(getType(), getValue());
     }
 }
@@ -0,0 +1,170 @@
+package astify.token;
+
+import astify.core.Position;
+import astify.core.Source;
+
+import java.util.Arrays;
+import java.util.Set;
+
+// every token of a source, stored as arrays of their types, kinds and offsets into the source's content rather than as
+// a Token for each, so that a large source takes a few bytes per token
+// the value of a token is only cut out of the content when it's asked for, and its position only made when asked for
+// tokens are read through a View, which is a Token which can be moved to any token of the buffer, so the buffer can be
+// parsed any number of times without generating its tokens again
+public final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Source source;
+    private final CharSequence content;
+
+    private byte[] types = new byte[64];
+    private int[] kinds = new int[64];
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int size = 0;
+
+    private TokenBuffer(Source source, CharSequence content) {
+        this.source = source;
+        this.content = content;
+    }
+
+    // generates every token of the source as a DefaultTokenGenerator would, not including EOF
+    public static TokenBuffer generate(Source source, Set<String> keywords, Set<String> symbols) throws TokenException {
+        assert source != null;
+        assert keywords != null;
+        assert symbols != null;
+
+        DefaultTokenGenerator generator = new DefaultTokenGenerator(source, keywords, symbols);
+        TokenBuffer buffer = new TokenBuffer(source, generator.contentCharacters);
+
+        generator.generate(buffer);
+        buffer.trim();
+
+        return buffer;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType getType(int index) {
+        assert index >= 0 && index < size;
+        return TYPES[types[index]];
+    }
+
+    public int getKind(int index) {
+        assert index >= 0 && index < size;
+        return kinds[index];
+    }
+
+    // returns the offset into the source's content of the first character of the token
+    public int getStart(int index) {
+        assert index >= 0 && index < size;
+        return starts[index];
+    }
+
+    // returns the offset into the source's content after the last character of the token
+    public int getEnd(int index) {
+        assert index >= 0 && index < size;
+        return ends[index];
+    }
+
+    public String getValue(int index) {
+        assert index >= 0 && index < size;
+        return content.subSequence(starts[index], ends[index]).toString();
+    }
+
+    public Position getPosition(int index) {
+        assert index >= 0 && index < size;
+        return Position.fromOffsets(source, starts[index], ends[index] - 1);
+    }
+
+    // returns whether the token has the value given, without cutting its value out of the content
+    public boolean hasValue(int index, String value) {
+        assert index >= 0 && index < size;
+        return ends[index] - starts[index] == value.length() && DefaultTokenGenerator.startsWith(content, value, starts[index]);
+    }
+
+    // returns a Token of its own for the token, which is kept after any view is moved
+    public Token getToken(int index) {
+        return new Token(getType(index), getValue(index), getPosition(index), getKind(index));
+    }
+
+    // returns a new view of the first token
+    public View view() {
+        return new View(this);
+    }
+
+    // a token of a buffer, which is moved between the tokens of the buffer rather than creating a Token for each
+    // anything which keeps a token should keep its index in the buffer, or a Token of its own from getToken()
+    public static final class View extends Token {
+        private final TokenBuffer buffer;
+        private int index = 0;
+
+        private View(TokenBuffer buffer) {
+            super(null, null, null, TokenKinds.NONE);
+            this.buffer = buffer;
+        }
+
+        public TokenBuffer getBuffer() {
+            return buffer;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        // moves the view to the token at `index` of its buffer
+        public void setIndex(int index) {
+            assert index >= 0 && index < buffer.size;
+            this.index = index;
+        }
+
+        @Override public TokenType getType() {
+            return buffer.getType(index);
+        }
+
+        @Override public String getValue() {
+            return buffer.getValue(index);
+        }
+
+        @Override public int getKind() {
+            return buffer.getKind(index);
+        }
+
+        @Override public boolean matches(TokenType type, String value) {
+            return matches(type) && buffer.hasValue(index, value);
+        }
+
+        @Override public Position getPosition() {
+            return buffer.getPosition(index);
+        }
+    }
+
+    void add(TokenType type, int kind, int start, int end) {
+        if (size == starts.length) {
+            types = Arrays.copyOf(types, size * 2);
+            kinds = Arrays.copyOf(kinds, size * 2);
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+
+        types[size] = (byte) type.ordinal();
+        kinds[size] = kind;
+        starts[size] = start;
+        ends[size] = end;
+        ++size;
+    }
+
+    // releases the capacity left over from growing the arrays, as nothing more is added once they're generated
+    private void trim() {
+        types = Arrays.copyOf(types, size);
+        kinds = Arrays.copyOf(kinds, size);
+        starts = Arrays.copyOf(starts, size);
+        ends = Arrays.copyOf(ends, size);
+    }
+}
@@ -0,0 +1,59 @@
+package astify.token;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// the values of tokens which grammars match against, interned as small integer ids called kinds
+// a kind identifies a type along with a value of that type, so two tokens with the same non-zero kind have the same
+// type and value, and matching a token against an expected value is an integer comparison
+// kinds are shared by every grammar in the JVM and are never removed, which is fine as they are only interned for the
+// literal values of patterns
+public final class TokenKinds {
+    // the kind of a token whose value wasn't interned when it was created
+    public static final int NONE = 0;
+
+    private static final Map<String, Integer>[] kinds = createMaps();
+    private static int count = 0;
+
+    private TokenKinds() {}
+
+    // returns the kind of the type and value, interning them if they haven't been already
+    public static synchronized int intern(TokenType type, String value) {
+        assert type != null;
+        assert value != null;
+
+        Integer kind = kinds[type.ordinal()].get(value);
+
+        if (kind == null) {
+            kind = ++count;
+            kinds[type.ordinal()].put(value, kind);
+        }
+
+        return kind;
+    }
+
+    // returns the kind of the type and value, or NONE if they haven't been interned
+    public static int lookup(TokenType type, String value) {
+        // most types have nothing interned, so don't hash their values at all
+        if (!hasValues(type)) return NONE;
+
+        Integer kind = kinds[type.ordinal()].get(value);
+        return kind == null ? NONE : kind;
+    }
+
+    // returns whether any value of the type has been interned
+    public static boolean hasValues(TokenType type) {
+        return !kinds[type.ordinal()].isEmpty();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<String, Integer>[] createMaps() {
+        Map<String, Integer>[] maps = new Map[TokenType.values().length];
+
+        for (int i = 0; i < maps.length; ++i) {
+            maps[i] = new ConcurrentHashMap<>();
+        }
+
+        return maps;
+    }
+}
@@ -0,0 +1,80 @@
+package astify.token;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+// the values of one token type which a DefaultTokenGenerator looks for in the source, such as the symbols or keywords
+// of a grammar, as a trie which finds them at an offset into the content without creating a string
+// each value is stored with its kind, looked up as the trie is built
+final class ValueTrie {
+    // the characters leading to the children of this node, in order, and the kind of the value the characters leading
+    // to this node spell, or -1 if they aren't a value
+    private char[] characters = new char[0];
+    private ValueTrie[] children = new ValueTrie[0];
+    private int kind = -1;
+
+    private ValueTrie() {}
+
+    static ValueTrie of(TokenType type, Set<String> values) {
+        ValueTrie root = new ValueTrie();
+
+        // added in order so that each node's characters are sorted as they are added
+        for (String value : new TreeSet<>(values)) {
+            if (!value.isEmpty()) root.add(value, TokenKinds.lookup(type, value));
+        }
+
+        return root;
+    }
+
+    // returns the length of the longest value at `offset` in the content, or 0 if no value is there
+    int match(CharSequence content, int offset) {
+        ValueTrie node = this;
+        int length = 0;
+
+        for (int i = offset; i < content.length(); ++i) {
+            node = node.getChild(content.charAt(i));
+
+            if (node == null) break;
+            if (node.kind != -1) length = i - offset + 1;
+        }
+
+        return length;
+    }
+
+    // returns the kind of the value spanning the content from `start` up to `end`, or -1 if it isn't a value
+    int getKind(CharSequence content, int start, int end) {
+        ValueTrie node = this;
+
+        for (int i = start; i < end && node != null; ++i) {
+            node = node.getChild(content.charAt(i));
+        }
+
+        return node == null ? -1 : node.kind;
+    }
+
+    private void add(String value, int kind) {
+        ValueTrie node = this;
+
+        for (int i = 0; i < value.length(); ++i) {
+            ValueTrie child = node.getChild(value.charAt(i));
+
+            if (child == null) {
+                child = new ValueTrie();
+                node.characters = Arrays.copyOf(node.characters, node.characters.length + 1);
+                node.children = Arrays.copyOf(node.children, node.children.length + 1);
+                node.characters[node.characters.length - 1] = value.charAt(i);
+                node.children[node.children.length - 1] = child;
+            }
+
+            node = child;
+        }
+
+        node.kind = kind;
+    }
+
+    private ValueTrie getChild(char c) {
+        int index = Arrays.binarySearch(characters, c);
+        return index < 0 ? null : children[index];
+    }
+}
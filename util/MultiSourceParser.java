@@ -4,10 +4,29 @@ import astify.Capture;
 import astify.ParserException;
 import astify.core.Source;
 import astify.token.TokenException;
-
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
 
 public abstract class MultiSourceParser<T extends Capture.ObjectCapture> {
+    // recorded for each call to parseSource() made by parseSources()
+    @Name("astify.ParseSource")
+    @Label("Parse Source")
+    @Category("astify")
+    @Description("A source parsed by a MultiSourceParser")
+    static class ParseSourceEvent extends Event {
+        @Label("Source") String source;
+        @Label("Size") @Description("The size of the source, in bytes for a file source and in characters otherwise") long size;
+        @Label("Failed") boolean failed;
+    }
+
     private final Map<Source, T> parsed = new HashMap<>();
     private final List<Source> additionList = new LinkedList<>();
     private final Map<Source, Set<Source>> importMapping = new HashMap<>();
@@ -46,8 +65,12 @@ public abstract class MultiSourceParser<T extends Capture.ObjectCapture> {
 
     public void parseSources() {
         while (firstUnresolved < additionList.size()) {
+            Source source = additionList.get(firstUnresolved++);
+            ParseSourceEvent event = new ParseSourceEvent();
+
+            event.begin();
+
             try {
-                Source source = additionList.get(firstUnresolved++);
                 T result = parseSource(source);
                 parsed.put(source, result);
 
@@ -55,8 +78,15 @@ public abstract class MultiSourceParser<T extends Capture.ObjectCapture> {
                     onSourceParsed(source, result);
             }
             catch (ParserException | TokenException e) {
+                event.failed = true;
                 error(e);
             }
+
+            if (event.shouldCommit()) {
+                event.source = source.getName();
+                event.size = getSize(source);
+                event.commit();
+            }
         }
     }
 
@@ -97,6 +127,20 @@ public abstract class MultiSourceParser<T extends Capture.ObjectCapture> {
         return new ArrayList<>(exceptions);
     }
 
+    // returns the size of a source without reading a file source again
+    private static long getSize(Source source) {
+        if (source instanceof Source.FileSource) {
+            try {
+                return Files.size(Paths.get(((Source.FileSource) source).getPath()));
+            }
+            catch (IOException e) {
+                return 0;
+            }
+        }
+
+        return source.getCharacters().length();
+    }
+
     protected void error(Exception exception) {
         exceptions.add(exception);
         onError(exception);
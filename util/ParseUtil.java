@@ -9,39 +9,41 @@ import astify.token.TokenGenerator;
 import java.util.List;
 
 public class ParseUtil {
-    public static List<Capture> parse(PatternBuilder patternBuilder, TokenGenerator tokenGenerator, String patternName) throws TokenException, ParserException {
-        Parser parser = new Parser();
-        Pattern pattern;
-
+    // parses using an LL1Parser, which falls back to the Parser for patterns that aren't LL(1)
+    public static List<Capture> parse(CompiledGrammar grammar, TokenGenerator tokenGenerator, String patternName) throws TokenException, ParserException {
         if (patternName == null) {
-            pattern = patternBuilder.getMain();
-        }
-        else {
-            pattern = patternBuilder.lookup(patternName);
+            patternName = "main";
         }
 
-        if (pattern == null) {
+        if (!grammar.hasRule(patternName)) {
             return null;
         }
 
-        parser.setup(pattern, tokenGenerator.getStartingPosition());
-        parser.parse(tokenGenerator);
+        return new LL1Parser(grammar, patternName).parse(tokenGenerator);
+    }
 
-        if (parser.hasError()) {
-            throw ParserException.combine(parser.getExceptions());
-        }
-        else {
-            return parser.getResults();
-        }
+    public static List<Capture> parse(CompiledGrammar grammar, TokenGenerator tokenGenerator) throws TokenException, ParserException {
+        return ParseUtil.parse(grammar, tokenGenerator, null);
     }
 
+    public static List<Capture> parse(Source source, CompiledGrammar grammar, String patternName) throws TokenException, ParserException {
+        return ParseUtil.parse(grammar, new DefaultTokenGenerator(source, grammar.getKeywords(), grammar.getSymbols()), patternName);
+    }
+
+    public static List<Capture> parse(Source source, CompiledGrammar grammar) throws TokenException, ParserException {
+        return parse(source, grammar, null);
+    }
+
+    public static List<Capture> parse(PatternBuilder patternBuilder, TokenGenerator tokenGenerator, String patternName) throws TokenException, ParserException {
+        return ParseUtil.parse(patternBuilder.compile(), tokenGenerator, patternName);
+    }
 
     public static List<Capture> parse(PatternBuilder patternBuilder, TokenGenerator tokenGenerator) throws TokenException, ParserException {
         return ParseUtil.parse(patternBuilder, tokenGenerator, null);
     }
 
     public static List<Capture> parse(Source source, PatternBuilder patternBuilder, String patternName) throws TokenException, ParserException {
-        return ParseUtil.parse(patternBuilder, new DefaultTokenGenerator(source, patternBuilder.getKeywords()), patternName);
+        return ParseUtil.parse(patternBuilder, new DefaultTokenGenerator(source, patternBuilder.getKeywords(), patternBuilder.getSymbols()), patternName);
     }
 
     public static List<Capture> parse(Source source, PatternBuilder patternBuilder) throws TokenException, ParserException {
@@ -49,33 +51,49 @@ public class ParseUtil {
     }
 
 
-    public static Capture parseSingle(PatternBuilder patternBuilder, TokenGenerator tokenGenerator, String patternName) throws TokenException, ParserException, AmbiguityException {
-        List<Capture> captures = ParseUtil.parse(patternBuilder, tokenGenerator, patternName);
+    public static Capture parseSingle(CompiledGrammar grammar, TokenGenerator tokenGenerator, String patternName) throws TokenException, ParserException, AmbiguityException {
+        ParseForest forest = ParseUtil.parseForest(grammar, tokenGenerator, patternName);
 
-        if (captures == null) {
+        if (forest == null) {
             return null;
         }
 
-        if (captures.size() == 1) {
-            return captures.get(0);
-        }
-        else if (captures.size() == 0) {
+        if (forest.isEmpty()) {
             // this should be impossible without exceptions being thrown but eh who knows
             System.out.println("wtf (astify/Util.java: parseSingle#1");
             return null;
         }
-        else {
+        else if (forest.isAmbiguous()) {
             // ambiguous syntax
-            throw new AmbiguityException(captures);
+            throw new AmbiguityException(forest);
+        }
+        else {
+            return forest.getFirstDerivation();
         }
     }
 
+    public static Capture parseSingle(CompiledGrammar grammar, TokenGenerator tokenGenerator) throws TokenException, ParserException, AmbiguityException {
+        return parseSingle(grammar, tokenGenerator, null);
+    }
+
+    public static Capture parseSingle(Source source, CompiledGrammar grammar, String patternName) throws TokenException, ParserException, AmbiguityException {
+        return parseSingle(grammar, new DefaultTokenGenerator(source, grammar.getKeywords(), grammar.getSymbols()), patternName);
+    }
+
+    public static Capture parseSingle(Source source, CompiledGrammar grammar) throws TokenException, ParserException, AmbiguityException {
+        return parseSingle(source, grammar, null);
+    }
+
+    public static Capture parseSingle(PatternBuilder patternBuilder, TokenGenerator tokenGenerator, String patternName) throws TokenException, ParserException, AmbiguityException {
+        return parseSingle(patternBuilder.compile(), tokenGenerator, patternName);
+    }
+
     public static Capture parseSingle(PatternBuilder patternBuilder, TokenGenerator tokenGenerator) throws TokenException, ParserException, AmbiguityException {
         return parseSingle(patternBuilder, tokenGenerator, null);
     }
 
     public static Capture parseSingle(Source source, PatternBuilder patternBuilder, String patternName) throws TokenException, ParserException, AmbiguityException {
-        return parseSingle(patternBuilder, new DefaultTokenGenerator(source, patternBuilder.getKeywords()), patternName);
+        return parseSingle(patternBuilder, new DefaultTokenGenerator(source, patternBuilder.getKeywords(), patternBuilder.getSymbols()), patternName);
     }
 
     public static Capture parseSingle(Source source, PatternBuilder patternBuilder) throws TokenException, ParserException, AmbiguityException {
@@ -83,12 +101,124 @@ public class ParseUtil {
     }
 
 
+    // parses into a ParseForest, which holds every derivation of an ambiguous parse without generating each of them
+    public static ParseForest parseForest(CompiledGrammar grammar, TokenGenerator tokenGenerator, String patternName) throws TokenException, ParserException {
+        Parser parser = run(grammar, tokenGenerator, patternName, true, ParseMode.ALL);
+        return parser == null ? null : parser.getForest();
+    }
+
+    public static ParseForest parseForest(CompiledGrammar grammar, TokenGenerator tokenGenerator) throws TokenException, ParserException {
+        return parseForest(grammar, tokenGenerator, null);
+    }
+
+    public static ParseForest parseForest(Source source, CompiledGrammar grammar, String patternName) throws TokenException, ParserException {
+        return parseForest(grammar, new DefaultTokenGenerator(source, grammar.getKeywords(), grammar.getSymbols()), patternName);
+    }
+
+    public static ParseForest parseForest(Source source, CompiledGrammar grammar) throws TokenException, ParserException {
+        return parseForest(source, grammar, null);
+    }
+
+    public static ParseForest parseForest(PatternBuilder patternBuilder, TokenGenerator tokenGenerator, String patternName) throws TokenException, ParserException {
+        return parseForest(patternBuilder.compile(), tokenGenerator, patternName);
+    }
+
+    public static ParseForest parseForest(PatternBuilder patternBuilder, TokenGenerator tokenGenerator) throws TokenException, ParserException {
+        return parseForest(patternBuilder, tokenGenerator, null);
+    }
+
+    public static ParseForest parseForest(Source source, PatternBuilder patternBuilder, String patternName) throws TokenException, ParserException {
+        return parseForest(patternBuilder, new DefaultTokenGenerator(source, patternBuilder.getKeywords(), patternBuilder.getSymbols()), patternName);
+    }
+
+    public static ParseForest parseForest(Source source, PatternBuilder patternBuilder) throws TokenException, ParserException {
+        return parseForest(source, patternBuilder, null);
+    }
+
+
+    // parses using ParseMode.FIRST, returning the result preferred by declaration order rather than failing if the input
+    // is ambiguous, and stopping as soon as that result is known
+    public static Capture parseFirst(CompiledGrammar grammar, TokenGenerator tokenGenerator, String patternName) throws TokenException, ParserException {
+        Parser parser = run(grammar, tokenGenerator, patternName, false, ParseMode.FIRST);
+        return parser == null || parser.getResults().isEmpty() ? null : parser.getResults().get(0);
+    }
+
+    public static Capture parseFirst(CompiledGrammar grammar, TokenGenerator tokenGenerator) throws TokenException, ParserException {
+        return parseFirst(grammar, tokenGenerator, null);
+    }
+
+    public static Capture parseFirst(Source source, CompiledGrammar grammar, String patternName) throws TokenException, ParserException {
+        return parseFirst(grammar, new DefaultTokenGenerator(source, grammar.getKeywords(), grammar.getSymbols()), patternName);
+    }
+
+    public static Capture parseFirst(Source source, CompiledGrammar grammar) throws TokenException, ParserException {
+        return parseFirst(source, grammar, null);
+    }
+
+    public static Capture parseFirst(PatternBuilder patternBuilder, TokenGenerator tokenGenerator, String patternName) throws TokenException, ParserException {
+        return parseFirst(patternBuilder.compile(), tokenGenerator, patternName);
+    }
+
+    public static Capture parseFirst(PatternBuilder patternBuilder, TokenGenerator tokenGenerator) throws TokenException, ParserException {
+        return parseFirst(patternBuilder, tokenGenerator, null);
+    }
+
+    public static Capture parseFirst(Source source, PatternBuilder patternBuilder, String patternName) throws TokenException, ParserException {
+        return parseFirst(patternBuilder, new DefaultTokenGenerator(source, patternBuilder.getKeywords(), patternBuilder.getSymbols()), patternName);
+    }
+
+    public static Capture parseFirst(Source source, PatternBuilder patternBuilder) throws TokenException, ParserException {
+        return parseFirst(source, patternBuilder, null);
+    }
+
+    // returns null if the grammar has no pattern with the given name
+    private static Parser run(CompiledGrammar grammar, TokenGenerator tokenGenerator, String patternName, boolean forestMode, ParseMode parseMode) throws TokenException, ParserException {
+        Parser parser = new Parser();
+
+        if (patternName == null) {
+            patternName = "main";
+        }
+
+        if (!grammar.hasRule(patternName)) {
+            return null;
+        }
+
+        parser.setForestMode(forestMode);
+        parser.setParseMode(parseMode);
+        parser.setup(grammar, patternName, tokenGenerator.getStartingPosition());
+        parser.parse(tokenGenerator);
+
+        if (parser.hasError()) {
+            throw ParserException.combine(parser.getExceptions());
+        }
+
+        return parser;
+    }
+
     public static class AmbiguityException extends Exception {
         private final List<Capture> results;
+        private final ParseForest forest;
 
         public AmbiguityException(List<Capture> results) {
             super(getMessage(results));
             this.results = results;
+            this.forest = null;
+        }
+
+        public AmbiguityException(ParseForest forest) {
+            super(getMessage(forest));
+            this.results = null;
+            this.forest = forest;
+        }
+
+        // returns every result, which for an exception created from a forest generates each derivation
+        public List<Capture> getResults() {
+            return results != null ? results : forest.getAllDerivations();
+        }
+
+        // returns the forest the exception was created from, or null if it was created from a list of results
+        public ParseForest getForest() {
+            return forest;
         }
 
         private static String getMessage(List<Capture> captures) {
@@ -104,5 +234,20 @@ public class ParseUtil {
 
             return errorBuilder.toString();
         }
+
+        // describes where the ambiguities are rather than printing every derivation, of which there may be very many
+        private static String getMessage(ParseForest forest) {
+            StringBuilder errorBuilder = new StringBuilder("Ambiguous syntax detected: ");
+
+            errorBuilder.append(forest.countDerivations());
+            errorBuilder.append(" derivations");
+
+            for (ParseForest.Ambiguity ambiguity : forest.getAmbiguities()) {
+                errorBuilder.append("\n\t");
+                errorBuilder.append(ambiguity.toString());
+            }
+
+            return errorBuilder.toString();
+        }
     }
 }
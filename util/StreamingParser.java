@@ -0,0 +1,275 @@
+package astify.util;
+
+import astify.*;
+import astify.core.Position;
+import astify.token.Token;
+import astify.token.TokenException;
+import astify.token.TokenGenerator;
+import astify.token.TokenType;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+// parses input which is a list of elements, such as the statements of a file or the lines of a log, passing each
+// element on as soon as it has been parsed rather than keeping every capture until the end of the input
+// the input is parsed as `sequence(list(element), eof())` would be: an element is parsed from the end of every element
+// found, and an element is passed on once every way of parsing the input which is still possible includes it
+// if two ways of splitting the input into elements reach the same token, whatever follows is the same for both, so
+// they're reported as ambiguous as soon as nothing else is possible, without reading the rest of the input
+// only the elements which haven't been passed on yet are kept, so memory is bounded by the largest element (or the
+// longest stretch of input which can be split in several ways) rather than the whole input
+public class StreamingParser {
+    private final CompiledGrammar grammar;
+    private final String elementName;
+
+    // a point between two elements, along with the elements found ending there
+    private static final class Boundary {
+        final int index;
+        final List<Element> elements = new ArrayList<>(1);
+        // whether the boundary leads to an element still being parsed, the index of the furthest element starting
+        // here, and the number of ways of reaching it (up to 2), found while looking for elements to pass on
+        boolean live;
+        int reach;
+        int paths;
+
+        Boundary(int index) {
+            this.index = index;
+        }
+    }
+
+    // an element found from the boundary `start`, with every derivation the Parser gave it
+    private static final class Element {
+        final Boundary start;
+        final List<Capture> derivations;
+
+        Element(Boundary start, List<Capture> derivations) {
+            this.start = start;
+            this.derivations = derivations;
+        }
+    }
+
+    // a Parser looking for elements from a boundary
+    private static final class Attempt {
+        final Parser parser;
+        final Boundary start;
+        int seen = 0;
+
+        Attempt(Parser parser, Boundary start) {
+            this.parser = parser;
+            this.start = start;
+        }
+
+        // adds the elements the parser found to the boundary at `index`, ignoring those which match nothing, and
+        // returns whether there were any
+        // results found when a token is fed end before it
+        boolean addElements(TreeMap<Integer, Boundary> boundaries, int index) {
+            int count = parser.getResultCount();
+            boolean added = count > seen && index > start.index;
+
+            if (added) {
+                List<Capture> results = parser.getResults();
+                boundaries.computeIfAbsent(index, Boundary::new).elements.add(new Element(start, new ArrayList<>(results.subList(seen, count))));
+            }
+
+            seen = count;
+            return added;
+        }
+    }
+
+    public StreamingParser(CompiledGrammar grammar, String elementName) {
+        assert grammar != null;
+        assert elementName != null;
+        assert grammar.hasRule(elementName) : "Lookup of '" + elementName + "' failed";
+
+        this.grammar = grammar;
+        this.elementName = elementName;
+    }
+
+    public StreamingParser(PatternBuilder patternBuilder, String elementName) {
+        this(patternBuilder.compile(), elementName);
+    }
+
+    // parses every element from the generator, passing each to the consumer in order, and returns how many there were
+    // elements passed on before an error are not taken back
+    public int parse(TokenGenerator tokenGenerator, Consumer<Capture> consumer) throws TokenException, ParserException, ParseUtil.AmbiguityException {
+        // boundaries from the end of the last element passed on, by the index of the token they're before
+        TreeMap<Integer, Boundary> boundaries = new TreeMap<>();
+        List<Attempt> attempts = new ArrayList<>();
+        // parsers of attempts which have finished, to be set up again
+        Deque<Parser> spare = new ArrayDeque<>();
+        Position last = tokenGenerator.getStartingPosition();
+        // the exceptions of the attempt which failed last, reported if every attempt fails
+        List<ParserException> exceptions = null;
+        Token token;
+        int count = 0, index = 0;
+
+        boundaries.put(0, new Boundary(0));
+
+        while ((token = tokenGenerator.getNext()).getType() != TokenType.EOF) {
+            Boundary boundary;
+            // whether any element was found or any attempt finished, which is when elements may be passed on
+            boolean changed = false;
+
+            for (Iterator<Attempt> iterator = attempts.iterator(); iterator.hasNext(); ) {
+                Attempt attempt = iterator.next();
+
+                attempt.parser.feedToken(token);
+                changed |= attempt.addElements(boundaries, index);
+
+                if (!attempt.parser.hasActiveStates()) {
+                    if (attempt.parser.hasError()) exceptions = attempt.parser.getExceptions();
+                    spare.push(attempt.parser);
+                    iterator.remove();
+                    changed = true;
+                }
+            }
+
+            // elements may start from wherever one ended, including before the first token
+            if ((boundary = boundaries.get(index)) != null) {
+                Parser parser = spare.isEmpty() ? new Parser() : spare.pop();
+
+                parser.setup(grammar, elementName, last);
+                parser.feedToken(token);
+
+                if (parser.hasActiveStates()) {
+                    attempts.add(new Attempt(parser, boundary));
+                }
+                else {
+                    if (parser.hasError()) exceptions = parser.getExceptions();
+                    spare.push(parser);
+                }
+            }
+
+            if (attempts.isEmpty()) {
+                throw getException(exceptions, token);
+            }
+
+            last = token.getPosition();
+            ++index;
+
+            if (changed) {
+                List<Boundary> frontier = new ArrayList<>();
+                for (Attempt attempt : attempts) frontier.add(attempt.start);
+                count += passOn(boundaries, frontier, consumer);
+            }
+        }
+
+        for (Attempt attempt : attempts) {
+            attempt.parser.finish();
+            attempt.addElements(boundaries, index);
+            if (attempt.parser.hasError()) exceptions = attempt.parser.getExceptions();
+        }
+
+        if (!boundaries.containsKey(index)) {
+            throw getException(exceptions, token);
+        }
+
+        return count + passOn(boundaries, Collections.singletonList(boundaries.get(index)), consumer);
+    }
+
+    private ParserException getException(List<ParserException> exceptions, Token token) {
+        if (exceptions != null && !exceptions.isEmpty()) return ParserException.combine(exceptions);
+        return new ParserException(token.getPosition(), "Failed to parse '" + elementName + "'");
+    }
+
+    // passes on the elements which every way of reaching the frontier includes, returning how many there were, and
+    // forgets every boundary before the last of them, as well as any which doesn't lead to the frontier
+    // the frontier is the boundaries elements are still being parsed from, or the end of the input once it's reached
+    private static int passOn(TreeMap<Integer, Boundary> boundaries, List<Boundary> frontier, Consumer<Capture> consumer) throws ParseUtil.AmbiguityException {
+        Boundary first = boundaries.firstEntry().getValue(), cut = first;
+        List<Capture> elements = new ArrayList<>();
+        int limit = Integer.MAX_VALUE, reach = 0;
+
+        for (Boundary boundary : boundaries.values()) {
+            boundary.live = false;
+            boundary.reach = boundary.index;
+            boundary.paths = 0;
+        }
+
+        for (Boundary boundary : frontier) {
+            boundary.live = true;
+            limit = Math.min(limit, boundary.index);
+        }
+
+        for (Boundary boundary : boundaries.descendingMap().values()) {
+            if (!boundary.live) continue;
+
+            for (Element element : boundary.elements) {
+                element.start.live = true;
+                element.start.reach = Math.max(element.start.reach, boundary.index);
+            }
+        }
+
+        // the furthest boundary no element leading to the frontier spans, which every way of reaching it passes
+        for (Boundary boundary : boundaries.headMap(limit, true).values()) {
+            if (!boundary.live) continue;
+            if (reach <= boundary.index) cut = boundary;
+            reach = Math.max(reach, boundary.reach);
+        }
+
+        first.paths = 1;
+
+        for (Boundary boundary : boundaries.subMap(first.index, false, cut.index, true).values()) {
+            if (!boundary.live) continue;
+
+            for (Element element : boundary.elements) {
+                if (element.start.index >= first.index) {
+                    boundary.paths = Math.min(2, boundary.paths + element.start.paths * element.derivations.size());
+                }
+            }
+
+            if (boundary.paths > 1) {
+                throw new ParseUtil.AmbiguityException(getAlternatives(first, boundary));
+            }
+        }
+
+        for (Boundary boundary = cut; boundary != first; boundary = getElement(boundary).start) {
+            elements.add(getElement(boundary).derivations.get(0));
+        }
+
+        Collections.reverse(elements);
+        elements.forEach(consumer);
+
+        boundaries.headMap(cut.index).clear();
+        boundaries.values().removeIf(boundary -> !boundary.live);
+        cut.elements.clear();
+
+        for (Boundary boundary : boundaries.values()) {
+            boundary.elements.removeIf(element -> !boundaries.containsKey(element.start.index));
+        }
+
+        return elements.size();
+    }
+
+    // returns the only element ending at the boundary which has a way of being reached
+    private static Element getElement(Boundary boundary) {
+        for (Element element : boundary.elements) {
+            if (element.start.paths > 0) return element;
+        }
+
+        throw new IllegalStateException("No element ends at " + boundary.index);
+    }
+
+    // returns every way of reaching the boundary, the first reached in several ways, as a list of the elements of each
+    private static List<Capture> getAlternatives(Boundary first, Boundary boundary) {
+        List<Capture> alternatives = new ArrayList<>();
+
+        for (Element element : boundary.elements) {
+            List<Capture> before = new ArrayList<>();
+
+            if (element.start.paths == 0) continue;
+
+            for (Boundary start = element.start; start != first; start = getElement(start).start) {
+                before.add(0, getElement(start).derivations.get(0));
+            }
+
+            for (Capture derivation : element.derivations) {
+                List<Capture> elements = new ArrayList<>(before);
+                elements.add(derivation);
+                alternatives.add(Capture.ListCapture.createFrom(elements));
+            }
+        }
+
+        return alternatives;
+    }
+}